@@ -0,0 +1,247 @@
+package h2o.util.concurrent.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of handing elements from "producers" to "consumers" threads
+ * through one queue, in elements per microsecond. JMH thread groups fix the
+ * number of threads per method at compile time, so the producers and consumers
+ * are threads of the benchmark's own, started once per trial; each invocation
+ * releases them to move {@value #ITEMS} elements and waits until the consumers
+ * took all of them, which keeps thread startup out of the measurement. A
+ * worker that fails terminates the phasers, which fails the benchmark.
+ * <p>
+ * The "mode" is how they move: "putTake" blocks in put and take,
+ * "offerPoll" spins on offer and poll, and "drainTo" puts and has consumers
+ * take one element and then drain up to {@value #DRAIN} more.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HandoffBenchmark
+{
+    static final int ITEMS = 1 << 16;
+    static final int DRAIN = 64;
+    private static final Integer ELEMENT = Integer.valueOf(1);
+
+    @Param({"clbq", "clbq-bounded", "clbq-striped", "clbq-array", "clbq-chunked", "clbq-laned", "cltq", "lbq",
+        "lbq-bounded", "abq", "ltq"})
+    public String impl;
+
+    @Param({"1024"})
+    public int capacity;
+
+    @Param({"1", "2", "4"})
+    public int producers;
+
+    @Param({"1", "2", "4"})
+    public int consumers;
+
+    @Param({"putTake", "offerPoll", "drainTo"})
+    public String mode;
+
+    private BlockingQueue<Integer> _q;
+    private Phaser _start;
+    private Phaser _done;
+    private Thread[] _threads;
+    private volatile boolean _stopped;
+    private volatile Throwable _failure;
+
+    @Setup
+    public void setup()
+    {
+        if (!"putTake".equals(mode) && !"offerPoll".equals(mode) && !"drainTo".equals(mode))
+        {
+            throw new IllegalArgumentException("unknown mode: " + mode);
+        }
+
+        _q = Queues.create(impl, capacity);
+        _start = new Phaser(producers + consumers + 1);
+        _done = new Phaser(producers + consumers + 1);
+        _threads = new Thread[producers + consumers];
+
+        for (int i = 0; i < producers; i++)
+        {
+            _threads[i] = new Worker("producer-" + i, true, quota(i, producers));
+        }
+
+        for (int i = 0; i < consumers; i++)
+        {
+            _threads[producers + i] = new Worker("consumer-" + i, false, quota(i, consumers));
+        }
+
+        for (Thread t : _threads)
+        {
+            t.start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException
+    {
+        _stopped = true;
+
+        if (_start.arriveAndAwaitAdvance() < 0)
+        {
+            // a worker failed; the others may be stuck in put or take for good
+            for (Thread t : _threads)
+            {
+                t.interrupt();
+            }
+        }
+
+        for (Thread t : _threads)
+        {
+            t.join();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public void handoff()
+    {
+        if (_start.arriveAndAwaitAdvance() < 0 || _done.arriveAndAwaitAdvance() < 0)
+        {
+            throw new IllegalStateException("worker failed", _failure);
+        }
+    }
+
+    /**
+     * Returns the share of the items of the given one of n threads; the shares
+     * add up to exactly {@link #ITEMS}, so no consumer waits for more.
+     */
+    private static int quota(int i, int n)
+    {
+        return ITEMS / n + (i < ITEMS % n ? 1 : 0);
+    }
+
+    private void produce(int quota) throws InterruptedException
+    {
+        if ("offerPoll".equals(mode))
+        {
+            for (int i = 0; i < quota; i++)
+            {
+                while (!_q.offer(ELEMENT))
+                {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+        else
+        {
+            for (int i = 0; i < quota; i++)
+            {
+                _q.put(ELEMENT);
+            }
+        }
+    }
+
+    private void consume(int quota, List<Integer> sink) throws InterruptedException
+    {
+        if ("offerPoll".equals(mode))
+        {
+            for (int i = 0; i < quota; i++)
+            {
+                while (_q.poll() == null)
+                {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+        else if ("drainTo".equals(mode))
+        {
+            for (int i = 0; i < quota;)
+            {
+                _q.take();
+                sink.clear();
+                i += 1 + _q.drainTo(sink, Math.min(DRAIN, quota - i - 1));
+            }
+        }
+        else
+        {
+            for (int i = 0; i < quota; i++)
+            {
+                _q.take();
+            }
+        }
+    }
+
+    private final class Worker extends Thread
+    {
+        private final boolean _producer;
+        private final int _quota;
+
+        Worker(String name, boolean producer, int quota)
+        {
+            super(name);
+            _producer = producer;
+            _quota = quota;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            final List<Integer> sink = new ArrayList<Integer>(DRAIN);
+
+            try
+            {
+                for (;;)
+                {
+                    if (_start.arriveAndAwaitAdvance() < 0 || _stopped)
+                    {
+                        return;
+                    }
+
+                    if (_producer)
+                    {
+                        produce(_quota);
+                    }
+                    else
+                    {
+                        consume(_quota, sink);
+                    }
+
+                    if (_done.arriveAndAwaitAdvance() < 0)
+                    {
+                        return;
+                    }
+                }
+            }
+            catch (Throwable t)
+            {
+                if (!_stopped)
+                {
+                    // release the benchmark thread and the other workers
+                    _failure = t;
+                    _start.forceTermination();
+                    _done.forceTermination();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package h2o.util.concurrent.jmh;
+
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedTransferQueue;
+
+/**
+ * The queue implementations the benchmarks take as their "impl" parameter.
+ * Each name stands for one queue, bounded or not, so that no combination of
+ * parameters is invalid; bounded ones take the "capacity" parameter.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+final class Queues
+{
+    private Queues()
+    {
+    }
+
+    static BlockingQueue<Integer> create(String impl, int capacity)
+    {
+        if ("clbq".equals(impl))
+            return new ConcurrentLinkedBlockingQueue<Integer>();
+        if ("clbq-bounded".equals(impl))
+            return new ConcurrentLinkedBlockingQueue<Integer>(capacity);
+        if ("clbq-striped".equals(impl))
+            return ConcurrentLinkedBlockingQueue.<Integer>builder().capacity(capacity).stripedCapacity(64).build();
+        if ("clbq-array".equals(impl))
+            return ConcurrentLinkedBlockingQueue.<Integer>builder().capacity(capacity).arrayBacked(true).build();
+        if ("clbq-chunked".equals(impl))
+            return ConcurrentLinkedBlockingQueue.<Integer>builder().chunked(true).build();
+        if ("clbq-laned".equals(impl))
+            return ConcurrentLinkedBlockingQueue.<Integer>builder().lanes(4).build();
+        if ("cltq".equals(impl))
+            return ConcurrentLinkedBlockingQueue.<Integer>builder().buildTransferQueue();
+        if ("lbq".equals(impl))
+            return new LinkedBlockingQueue<Integer>();
+        if ("lbq-bounded".equals(impl))
+            return new LinkedBlockingQueue<Integer>(capacity);
+        if ("abq".equals(impl))
+            return new ArrayBlockingQueue<Integer>(capacity);
+        if ("ltq".equals(impl))
+            return new LinkedTransferQueue<Integer>();
+        throw new IllegalArgumentException("unknown impl: " + impl);
+    }
+}
@@ -0,0 +1,84 @@
+package h2o.util.concurrent.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Uncontended cost of the non-blocking operations: an offer followed by a poll
+ * on an empty queue, and a batch of offers followed by one drainTo. Every
+ * thread has a queue of its own, so running with -t n measures how the queues
+ * scale when nothing is shared.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SingleThreadBenchmark
+{
+    private static final int BATCH = 64;
+    private static final Integer ELEMENT = Integer.valueOf(1);
+
+    @Param({"clbq", "clbq-bounded", "clbq-striped", "clbq-array", "clbq-chunked", "clbq-laned", "cltq", "lbq",
+        "lbq-bounded", "abq", "ltq"})
+    public String impl;
+
+    @Param({"1024"})
+    public int capacity;
+
+    private BlockingQueue<Integer> _q;
+    private final List<Integer> _sink = new ArrayList<Integer>(BATCH);
+
+    @Setup
+    public void setup()
+    {
+        if (capacity < BATCH)
+        {
+            throw new IllegalArgumentException("capacity must be >= " + BATCH);
+        }
+
+        _q = Queues.create(impl, capacity);
+    }
+
+    @Benchmark
+    public Integer offerPoll()
+    {
+        _q.offer(ELEMENT);
+        return _q.poll();
+    }
+
+    /**
+     * Cost per element of offering a batch and draining it in one go.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int offerDrainTo()
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            _q.offer(ELEMENT);
+        }
+
+        _sink.clear();
+        return _q.drainTo(_sink, BATCH);
+    }
+}
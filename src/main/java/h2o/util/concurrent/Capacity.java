@@ -0,0 +1,287 @@
+package h2o.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Free-slot accounting of a bounded {@link ConcurrentLinkedBlockingQueue}:
+ * producers acquire a permit per element, consumers release it again.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+abstract class Capacity
+{
+    // counts failed CAS attempts, null unless the queue records statistics
+    private final QueueStats _stats;
+
+    Capacity(QueueStats stats)
+    {
+        _stats = stats;
+    }
+
+    final void casRetried()
+    {
+        if (_stats != null)
+        {
+            _stats.casRetried();
+        }
+    }
+
+    /**
+     * Takes one permit if available.
+     */
+    final boolean tryAcquire()
+    {
+        return tryAcquire(1) == 1;
+    }
+
+    /**
+     * Takes up to the given number of permits at once; returns how many.
+     */
+    abstract int tryAcquire(int permits);
+
+    /**
+     * Returns the given number of permits.
+     */
+    abstract void release(int permits);
+
+    /**
+     * Returns the number of available permits; a snapshot while contended.
+     */
+    abstract int remaining();
+
+    /**
+     * A single counter that every producer and consumer updates; exact, but its
+     * cache line is shared by all threads.
+     */
+    static final class Exact extends Capacity
+    {
+        private final AtomicInteger _permits;
+
+        Exact(int capacity, QueueStats stats)
+        {
+            super(stats);
+            _permits = new AtomicInteger(capacity);
+        }
+
+        @Override
+        int tryAcquire(int permits)
+        {
+            for (;;)
+            {
+                int capacity = _permits.get();
+
+                if (capacity == 0)
+                {
+                    return 0;
+                }
+
+                int acquired = capacity < permits ? capacity : permits;
+
+                if (_permits.compareAndSet(capacity, capacity - acquired))
+                {
+                    return acquired;
+                }
+
+                casRetried();
+            }
+        }
+
+        @Override
+        void release(int permits)
+        {
+            _permits.addAndGet(permits);
+        }
+
+        @Override
+        int remaining()
+        {
+            return _permits.get();
+        }
+    }
+
+    /**
+     * Permits are spread over a central counter and per-stripe caches indexed by
+     * thread. Producers take from their stripe and refill it from the central
+     * counter a batch of up to {@code slack} permits at a time; consumers return
+     * permits to their stripe and only hand all but a slack's worth back to the
+     * central counter once the stripe holds twice the slack. A producer that finds both empty
+     * sweeps all stripes back into the central counter before giving up, so
+     * permits are never lost and the capacity is never exceeded.
+     * <p>
+     * While a refilling or sweeping thread holds a batch in transit, another
+     * producer may see the queue as full although up to {@code slack} permits
+     * per such thread exist; a non-blocking offer may then fail spuriously. A
+     * blocked producer is not affected: whoever lands a batch of more than one
+     * permit wakes up a waiting producer.
+     */
+    static final class Striped extends Capacity
+    {
+        // cells are spread 64 bytes apart to keep stripes off each other's lines
+        private static final int PAD = 16;
+
+        private final AtomicInteger _central;
+        private final AtomicIntegerArray _cells;
+        private final int _mask;
+        private final int _slack;
+        private final ConcurrentLinkedBlockingQueue.ParkQueue _waiters;
+
+        Striped(int capacity, int slack, ConcurrentLinkedBlockingQueue.ParkQueue waiters, QueueStats stats)
+        {
+            super(stats);
+
+            if (slack <= 0)
+            {
+                throw new IllegalArgumentException("slack must be > 0");
+            }
+
+            int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+            if (stripes < Runtime.getRuntime().availableProcessors())
+            {
+                stripes <<= 1;
+            }
+
+            _central = new AtomicInteger(capacity);
+            _cells = new AtomicIntegerArray(stripes * PAD);
+            _mask = stripes - 1;
+            _slack = slack;
+            _waiters = waiters;
+        }
+
+        private int cell()
+        {
+            long id = Thread.currentThread().getId();
+            int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+            return ((h >>> 16) & _mask) * PAD;
+        }
+
+        @Override
+        int tryAcquire(int permits)
+        {
+            final int cell = cell();
+            int acquired = take(cell, permits);
+
+            if (acquired == permits)
+            {
+                return acquired;
+            }
+
+            acquired += refill(cell, permits - acquired);
+
+            if (acquired == permits)
+            {
+                return acquired;
+            }
+
+            // everything left is cached in other stripes, if anywhere
+            int swept = 0;
+
+            for (int i = 0; i <= _mask; i++)
+            {
+                if (_cells.get(i * PAD) > 0)
+                {
+                    swept += _cells.getAndSet(i * PAD, 0);
+                }
+            }
+
+            if (swept > 0)
+            {
+                _central.addAndGet(swept);
+
+                if (swept > permits - acquired)
+                {
+                    _waiters.unparkOne();
+                }
+            }
+
+            return acquired + refill(cell, permits - acquired);
+        }
+
+        /**
+         * Takes up to the given number of permits from the given cell.
+         */
+        private int take(int cell, int permits)
+        {
+            for (;;)
+            {
+                int local = _cells.get(cell);
+
+                if (local == 0)
+                {
+                    return 0;
+                }
+
+                int taken = local < permits ? local : permits;
+
+                if (_cells.compareAndSet(cell, local, local - taken))
+                {
+                    return taken;
+                }
+
+                casRetried();
+            }
+        }
+
+        /**
+         * Takes up to the given number of permits, but at least a slack's worth if
+         * available, from the central counter, keeping any surplus in the given
+         * cell.
+         */
+        private int refill(int cell, int permits)
+        {
+            for (;;)
+            {
+                int central = _central.get();
+
+                if (central == 0)
+                {
+                    return 0;
+                }
+
+                int wanted = permits > _slack ? permits : _slack;
+                int batch = central < wanted ? central : wanted;
+
+                if (_central.compareAndSet(central, central - batch))
+                {
+                    if (batch > permits)
+                    {
+                        _cells.addAndGet(cell, batch - permits);
+                        _waiters.unparkOne();
+                        return permits;
+                    }
+
+                    return batch;
+                }
+
+                casRetried();
+            }
+        }
+
+        @Override
+        void release(int permits)
+        {
+            final int cell = cell();
+            int local = _cells.addAndGet(cell, permits);
+
+            if (local >= 2 * _slack && _cells.compareAndSet(cell, local, _slack))
+            {
+                _central.addAndGet(local - _slack);
+            }
+        }
+
+        @Override
+        int remaining()
+        {
+            int remaining = _central.get();
+
+            for (int i = 0; i <= _mask; i++)
+            {
+                remaining += _cells.get(i * PAD);
+            }
+
+            return remaining;
+        }
+    }
+}
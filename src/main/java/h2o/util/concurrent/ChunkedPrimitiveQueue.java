@@ -0,0 +1,389 @@
+package h2o.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Unbounded multi-producer/multi-consumer queue of primitive values stored in
+ * linked chunks of arrays, the common base of {@link IntConcurrentLinkedBlockingQueue}
+ * and {@link LongConcurrentLinkedBlockingQueue}. Subclasses own the value arrays
+ * and expose the operations for their type; values pass through this class as
+ * {@code long}, which holds any {@code int} exactly.
+ * <p>
+ * Producers and consumers claim slots of a chunk with a fetch-and-add on its
+ * enqueue and dequeue index (after Ramalhete and Correia's FAA array queue). A
+ * producer writes its value, then publishes the slot by moving its state from
+ * EMPTY to FULL; a consumer takes a slot by swapping its state to TAKEN. A
+ * consumer that overtakes a producer poisons the slot and the producer retries
+ * with the next one, so neither side ever waits for the other. Waiting
+ * consumers park on a {@link ConcurrentLinkedBlockingQueue.ParkQueue} with the
+ * same protocol as the object queues.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+abstract class ChunkedPrimitiveQueue
+{
+    static final int CHUNK_SIZE = 1024;
+
+    /** {@link #claim(Chunk)}: the queue is empty. */
+    static final int NONE = -1;
+    /** {@link #claim(Chunk)} and {@link #reserve(Chunk)}: try again. */
+    static final int RETRY = -2;
+
+    private static final int EMPTY = 0;
+    private static final int FULL = 1;
+    private static final int TAKEN = 2;
+
+    private final AtomicReference<Chunk> _head;
+    private final AtomicReference<Chunk> _tail;
+    protected final ConcurrentLinkedBlockingQueue.ParkQueue _parkq;
+    protected final WaitStrategy _waitStrategy;
+
+    protected ChunkedPrimitiveQueue(boolean reuseMarkers, WaitStrategy waitStrategy)
+    {
+        if (waitStrategy == null)
+        {
+            throw new NullPointerException();
+        }
+
+        Chunk chunk = newChunk();
+        _head = new MpmcRing.PaddedAtomicReference<Chunk>(chunk);
+        _tail = new MpmcRing.PaddedAtomicReference<Chunk>(chunk);
+        _parkq = new ConcurrentLinkedBlockingQueue.ParkQueue(reuseMarkers);
+        _waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Returns a new chunk holding an array of {@link #CHUNK_SIZE} values.
+     */
+    protected abstract Chunk newChunk();
+
+    protected final Chunk head()
+    {
+        return _head.get();
+    }
+
+    /**
+     * Claims a slot of the given tail chunk for the current producer; returns its
+     * index or {@link #RETRY} after moving on to a further chunk.
+     */
+    private int reserve(Chunk tail)
+    {
+        int i = Chunk.ENQ.getAndIncrement(tail);
+
+        if (i < CHUNK_SIZE)
+        {
+            return i;
+        }
+
+        Chunk next = tail.next;
+
+        if (next == null)
+        {
+            Chunk chunk = newChunk();
+            next = Chunk.NEXT.compareAndSet(tail, null, chunk) ? chunk : tail.next;
+        }
+
+        _tail.compareAndSet(tail, next);
+        return RETRY;
+    }
+
+    /**
+     * Publishes the value the current producer wrote into the given reserved
+     * slot; returns false if a consumer has given up on the slot meanwhile, in
+     * which case the producer has to reserve another one.
+     */
+    private static boolean publish(Chunk chunk, int i)
+    {
+        return chunk._states.compareAndSet(i, EMPTY, FULL);
+    }
+
+    /**
+     * Takes a slot of the given head chunk for the current consumer; returns its
+     * index, {@link #NONE} if the queue is empty or {@link #RETRY}.
+     */
+    protected final int claim(Chunk head)
+    {
+        if (head.deq >= head.enq && head.next == null)
+        {
+            return NONE;
+        }
+
+        int i = Chunk.DEQ.getAndIncrement(head);
+
+        if (i >= CHUNK_SIZE)
+        {
+            Chunk next = head.next;
+
+            if (next == null)
+            {
+                return NONE;
+            }
+
+            _head.compareAndSet(head, next);
+            return RETRY;
+        }
+
+        return head._states.getAndSet(i, TAKEN) == FULL ? i : RETRY;
+    }
+
+    /**
+     * Appends the given value; does not wake up any consumer.
+     */
+    protected final void enqueue(long value)
+    {
+        for (;;)
+        {
+            Chunk tail = _tail.get();
+            int i = reserve(tail);
+
+            if (i >= 0)
+            {
+                tail.set(i, value);
+
+                if (publish(tail, i))
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the head value, or returns the given value if the
+     * queue is empty.
+     */
+    protected final long pollValue(long ifEmpty)
+    {
+        for (;;)
+        {
+            Chunk head = _head.get();
+            int i = claim(head);
+
+            if (i >= 0)
+            {
+                return head.get(i);
+            }
+
+            if (i == NONE)
+            {
+                return ifEmpty;
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the head value, waiting if necessary until one
+     * becomes available.
+     */
+    protected final long takeValue() throws InterruptedException
+    {
+        int attempt = 0;
+
+        for (;;)
+        {
+            Chunk head = _head.get();
+            int i = claim(head);
+
+            if (i >= 0)
+            {
+                return head.get(i);
+            }
+
+            if (i == NONE)
+            {
+                await(attempt, false, 0L);
+                attempt = WaitStrategy.next(attempt);
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the head value, waiting up to the given time for one
+     * to become available; returns the given value on time out.
+     */
+    protected final long pollValue(long timeout, TimeUnit unit, long ifEmpty) throws InterruptedException
+    {
+        if (timeout < 0)
+        {
+            // treat negative timeout same as to wait forever
+            return takeValue();
+        }
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempt = 0;
+
+        for (;;)
+        {
+            Chunk head = _head.get();
+            int i = claim(head);
+
+            if (i >= 0)
+            {
+                return head.get(i);
+            }
+
+            if (i == NONE)
+            {
+                if (!await(attempt, true, deadline))
+                {
+                    return ifEmpty;
+                }
+
+                attempt = WaitStrategy.next(attempt);
+            }
+        }
+    }
+
+    /**
+     * Called by a consumer that found the queue empty on its given attempt; idles
+     * according to the wait strategy or parks until a producer signals, or until
+     * the given deadline if timed. Returns false once the deadline has passed.
+     */
+    private boolean await(int attempt, boolean timed, long deadline) throws InterruptedException
+    {
+        long duration = 0;
+
+        if (timed && (duration = deadline - System.nanoTime()) <= 0)
+        {
+            return false; // time out
+        }
+
+        if (_waitStrategy.idle(attempt))
+        {
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+
+            return true;
+        }
+
+        ConcurrentLinkedBlockingQueue.ThreadMarker m = _parkq.marker();
+
+        if (Thread.interrupted())
+        {
+            // avoid the parkq.offer(m) if already interrupted
+            throw new InterruptedException();
+        }
+
+        _parkq.enqueue(m);
+
+        // check again in case there is data race
+        if (isEmpty())
+        {
+            if (timed)
+            {
+                LockSupport.parkNanos(duration);
+            }
+            else
+            {
+                LockSupport.park();
+            }
+        }
+
+        _parkq.leave(m);
+
+        if (Thread.interrupted())
+        {
+            throw new InterruptedException();
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns whether there is no value to take; a snapshot while contended.
+     */
+    public boolean isEmpty()
+    {
+        Chunk head = _head.get();
+
+        // a dequeue index at the end of the chunk also means empty
+        return (head.deq >= head.enq || head.deq >= CHUNK_SIZE) && head.next == null;
+    }
+
+    /**
+     * Returns an estimate of the number of values in this queue; it counts
+     * values whose producers are still writing them and is not exact while the
+     * queue is modified concurrently.
+     */
+    public int size()
+    {
+        long size = 0;
+
+        for (Chunk chunk = _head.get(); chunk != null; chunk = chunk.next)
+        {
+            int enq = Math.min(chunk.enq, CHUNK_SIZE);
+            int deq = Math.min(chunk.deq, CHUNK_SIZE);
+
+            if (enq > deq)
+            {
+                size += enq - deq;
+            }
+        }
+
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)size;
+    }
+
+    /**
+     * Returns the number of consumers that are (potentially) parked.
+     */
+    public int waitingConsumers()
+    {
+        return _parkq.waiters();
+    }
+
+    /**
+     * Returns how many times a producer had to skip the park marker of a
+     * consumer that had stopped waiting; for diagnostics.
+     */
+    public long skippedMarkers()
+    {
+        return _parkq.skipped();
+    }
+
+    /**
+     * Checks the given range of an array of the given length.
+     */
+    protected static void checkRange(int arrayLength, int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset > arrayLength - length)
+        {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length
+                                                + ", array length " + arrayLength);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[size=" + size() + "]";
+    }
+
+    protected abstract static class Chunk
+    {
+        static final AtomicIntegerFieldUpdater<Chunk> ENQ =
+            AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "enq");
+        static final AtomicIntegerFieldUpdater<Chunk> DEQ =
+            AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "deq");
+        static final AtomicReferenceFieldUpdater<Chunk, Chunk> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Chunk.class, Chunk.class, "next");
+
+        private final AtomicIntegerArray _states = new AtomicIntegerArray(CHUNK_SIZE);
+        volatile int enq;
+        volatile int deq;
+        volatile Chunk next;
+
+        /** Returns the value in the given slot. */
+        abstract long get(int i);
+
+        /** Writes the given value into the given slot. */
+        abstract void set(int i, long value);
+    }
+}
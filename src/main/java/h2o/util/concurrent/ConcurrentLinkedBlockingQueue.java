@@ -2,13 +2,34 @@
 package h2o.util.concurrent;
 
 import java.io.Serializable;
+import java.lang.invoke.VarHandle;
 import java.util.AbstractQueue;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.LockSupport;
 
 /**
@@ -26,7 +47,7 @@ public class ConcurrentLinkedBlockingQueue<E> extends AbstractQueue<E>
 {
     private static final long serialVersionUID = 1L;
 
-    private final BlockingQueue<E> _impl;
+    private final Impl<E> _impl;
 
     public ConcurrentLinkedBlockingQueue()
     {
@@ -48,6 +69,39 @@ public class ConcurrentLinkedBlockingQueue<E> extends AbstractQueue<E>
         _impl = new Bounded<E>(capacity, c);
     }
 
+    protected ConcurrentLinkedBlockingQueue(Impl<E> impl)
+    {
+        _impl = impl;
+    }
+
+    /**
+     * Returns a builder for queues with non-default tuning options.
+     */
+    public static <E> Builder<E> builder()
+    {
+        return new Builder<E>();
+    }
+
+    /**
+     * Returns an unbounded queue for exactly one producer and one consumer
+     * thread at a time; neither end uses CAS and a waiting consumer parks in a
+     * single slot instead of a marker queue.
+     */
+    public static <E> ConcurrentLinkedBlockingQueue<E> spsc()
+    {
+        return ConcurrentLinkedBlockingQueue.<E>builder().singleProducer(true).singleConsumer(true).build();
+    }
+
+    /**
+     * Returns an unbounded queue for any number of producers but exactly one
+     * consumer thread at a time; producers link in with a single atomic swap and
+     * a waiting consumer parks in a single slot instead of a marker queue.
+     */
+    public static <E> ConcurrentLinkedBlockingQueue<E> mpsc()
+    {
+        return ConcurrentLinkedBlockingQueue.<E>builder().singleConsumer(true).build();
+    }
+
     @Override
     public Iterator<E> iterator()
     {
@@ -93,13 +147,82 @@ public class ConcurrentLinkedBlockingQueue<E> extends AbstractQueue<E>
     @Override
     public void put(E e) throws InterruptedException
     {
-        _impl.offer(e);
+        _impl.put(e);
     }
 
     @Override
     public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException
     {
-        return _impl.offer(e);
+        return _impl.offer(e, timeout, unit);
+    }
+
+    /**
+     * Inserts as many of the given elements as possible without waiting, in
+     * iteration order, linking them in one go and waking up at most as many
+     * waiting consumers as elements were inserted.
+     *
+     * @return the number of elements inserted, a prefix of the collection
+     */
+    public int offerAll(Collection<? extends E> c)
+    {
+        if (c == this)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        return _impl.offerAll(c);
+    }
+
+    /**
+     * Inserts all of the given elements in iteration order, waiting for space in
+     * a bounded queue as necessary. If interrupted, a prefix of the collection
+     * may already have been inserted.
+     */
+    public void putAll(Collection<? extends E> c) throws InterruptedException
+    {
+        if (c == this)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        _impl.putAll(c);
+    }
+
+    /**
+     * Waits for at least one element, then removes up to {@code maxElements}
+     * available elements at once, so that a consumer pays for parking at most
+     * once per batch rather than once per element.
+     *
+     * @return the number of elements added to the given collection
+     */
+    public int takeBatch(Collection<? super E> c, int maxElements) throws InterruptedException
+    {
+        return _impl.takeBatch(c, maxElements);
+    }
+
+    /**
+     * Like {@link #takeBatch(Collection, int)}, but waits at most the given time
+     * for the first element.
+     *
+     * @return the number of elements added to the given collection, 0 on timeout
+     */
+    public int takeBatch(Collection<? super E> c, int maxElements, long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        return _impl.takeBatch(c, maxElements, timeout, unit);
+    }
+
+    /**
+     * Like {@link #takeBatch(Collection, int)}, but once the first element has
+     * arrived keeps collecting for up to the given linger time until at least
+     * {@code minElements} have been taken, letting a batch fill up.
+     *
+     * @return the number of elements added to the given collection
+     */
+    public int takeBatch(Collection<? super E> c, int minElements, int maxElements, long linger, TimeUnit unit)
+        throws InterruptedException
+    {
+        return _impl.takeBatch(c, minElements, maxElements, linger, unit);
     }
 
     @Override
@@ -120,94 +243,543 @@ public class ConcurrentLinkedBlockingQueue<E> extends AbstractQueue<E>
         return _impl.drainTo(c, maxElements);
     }
 
-    protected static class ThreadMarker
+    /**
+     * Returns a future of the next element that does not block the calling
+     * thread: it is complete already if an element is available, and otherwise
+     * completed by the producer whose offer wakes it, as a parked consumer would
+     * be woken. Dependent actions then run in that producer's thread; see
+     * {@link #takeAsync(Executor)}. Cancelling the future stops the wait; it
+     * must not be completed by other means. Not supported by single-consumer
+     * queues.
+     */
+    public CompletableFuture<E> takeAsync()
     {
-        final Thread thread;
-        // assumed parked until found otherwise.
-        volatile boolean parked = true;
+        return _impl.takeAsync(null);
+    }
 
-        ThreadMarker(Thread t)
+    /**
+     * Like {@link #takeAsync()}, but completes a future that had to wait on the
+     * given executor, or in the producer's thread should the executor reject it.
+     */
+    public CompletableFuture<E> takeAsync(Executor executor)
+    {
+        return _impl.takeAsync(executor);
+    }
+
+    /**
+     * Like {@link #takeAsync()}, but completes the future with null once the
+     * given time has passed without an element.
+     */
+    public CompletableFuture<E> pollAsync(long timeout, TimeUnit unit)
+    {
+        return _impl.pollAsync(timeout, unit, null);
+    }
+
+    /**
+     * Like {@link #pollAsync(long, TimeUnit)}, but completes a future that had
+     * to wait on the given executor; see {@link #takeAsync(Executor)}.
+     */
+    public CompletableFuture<E> pollAsync(long timeout, TimeUnit unit, Executor executor)
+    {
+        return _impl.pollAsync(timeout, unit, executor);
+    }
+
+    /**
+     * Returns a publisher that hands the elements of this queue to its
+     * subscribers as they request them, signalling them on the common
+     * fork/join pool; see {@link QueuePublisher}.
+     */
+    public Flow.Publisher<E> publisher()
+    {
+        return publisher(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Like {@link #publisher()}, but signals the subscribers on the given
+     * executor. Not supported by single-consumer queues.
+     */
+    public Flow.Publisher<E> publisher(Executor executor)
+    {
+        if (executor == null)
         {
-            thread = t;
+            throw new NullPointerException();
         }
+
+        if (_impl.consumerParkQueue() == null)
+        {
+            throw new UnsupportedOperationException("no async consumers on a single-consumer queue");
+        }
+
+        return new QueuePublisher<E>(this, executor);
     }
 
-    protected static class Unbounded<E> extends AbstractQueue<E> implements BlockingQueue<E>
+    /**
+     * Returns a subscriber that inserts what it receives into this queue,
+     * requesting no more than fits, and that requests more on the common
+     * fork/join pool once consumers made room; see {@link QueueSubscriber}.
+     */
+    public Flow.Subscriber<E> subscriber()
     {
-        protected final ConcurrentLinkedQueue<ThreadMarker> _parkq;
-        protected final ConcurrentLinkedQueue<E> _q;
+        return subscriber(ForkJoinPool.commonPool());
+    }
 
-        public Unbounded()
+    /**
+     * Like {@link #subscriber()}, but requests more on the given executor.
+     */
+    public Flow.Subscriber<E> subscriber(Executor executor)
+    {
+        if (executor == null)
         {
-            _parkq = new ConcurrentLinkedQueue<ThreadMarker>();
-            _q = new ConcurrentLinkedQueue<E>();
+            throw new NullPointerException();
         }
 
-        public Unbounded(Collection<? extends E> c)
+        return new QueueSubscriber<E>(this, _impl.producerParkQueue(), executor);
+    }
+
+    /**
+     * Returns how many times a producer or consumer about to wake up a waiting
+     * thread had to skip the marker of a thread that had stopped waiting; for
+     * diagnostics.
+     */
+    public long skippedMarkers()
+    {
+        return _impl.skippedMarkers();
+    }
+
+    /**
+     * Returns the hot-path counters of this queue, e.g. to take a
+     * {@link QueueStats#snapshot() snapshot} or to
+     * {@link QueueStats#register(String) register} them over JMX, or null
+     * unless it was built with {@link Builder#stats(boolean) stats(true)}.
+     */
+    public QueueStats stats()
+    {
+        return _impl.stats();
+    }
+
+    /**
+     * Builder for queues with non-default tuning options; the defaults are the
+     * same as those of the public constructors.
+     *
+     * @param <E> the type of elements held in the built queue
+     */
+    public static class Builder<E>
+    {
+        int capacity;
+        boolean reuseMarkers;
+        WaitStrategy waitStrategy = WaitStrategy.PARK;
+        int capacitySlack;
+        boolean countSize;
+        boolean arrayBacked;
+        boolean singleProducer;
+        boolean singleConsumer;
+        int lanes = 1;
+        boolean lifoWakeup;
+        boolean chunked;
+        boolean stats;
+        int wakeupLimit;
+
+        protected Builder()
         {
-            _parkq = new ConcurrentLinkedQueue<ThreadMarker>();
-            _q = new ConcurrentLinkedQueue<E>(c);
         }
 
-        @Override
-        public Iterator<E> iterator()
+        /**
+         * Bounds the queue to the given capacity; unbounded if never called.
+         */
+        public Builder<E> capacity(int capacity)
         {
-            return _q.iterator();
+            if (capacity <= 0)
+            {
+                throw new IllegalArgumentException("capacity must be > 0");
+            }
+
+            this.capacity = capacity;
+            return this;
         }
 
-        @Override
-        public int size()
+        /**
+         * Makes every waiting thread reuse a single marker per park queue and
+         * keeps waiting markers in a preallocated ring, so that a park/unpark cycle
+         * allocates nothing in steady state. Costs one {@link ThreadLocal} lookup
+         * per slow path and a small fixed ring per park queue.
+         */
+        public Builder<E> reuseMarkers(boolean reuseMarkers)
         {
-            return _q.size();
+            this.reuseMarkers = reuseMarkers;
+            return this;
         }
 
-        @Override
-        public boolean offer(E e)
+        /**
+         * Sets what threads do on an empty (or full) queue before they park;
+         * {@link WaitStrategy#PARK} if never called.
+         */
+        public Builder<E> waitStrategy(WaitStrategy waitStrategy)
         {
-            _q.offer(e);
+            if (waitStrategy == null)
+            {
+                throw new NullPointerException();
+            }
 
-            for (;;)
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
+
+        /**
+         * Spreads the capacity accounting of a bounded queue over per-stripe
+         * caches of up to the given number of permits, instead of a single counter
+         * hit by every producer and consumer. Capacity is never exceeded, but a
+         * non-blocking offer may fail while a batch of up to {@code slack} permits
+         * is being moved between stripes. Exact accounting if never called; not
+         * supported by unbounded or array backed queues.
+         */
+        public Builder<E> stripedCapacity(int slack)
+        {
+            if (slack <= 0)
             {
-                ThreadMarker marker = _parkq.poll();
+                throw new IllegalArgumentException("slack must be > 0");
+            }
 
-                if (marker == null)
+            this.capacitySlack = slack;
+            return this;
+        }
+
+        /**
+         * Makes {@link ConcurrentLinkedBlockingQueue#size() size()} of an unbounded
+         * queue read striped counters maintained by every insertion and removal
+         * instead of traversing all elements; the result is exact when the queue
+         * is quiescent and approximate while it is being modified. Not supported
+         * by bounded queues, which derive their size from their capacity
+         * accounting.
+         */
+        public Builder<E> countSize(boolean countSize)
+        {
+            this.countSize = countSize;
+            return this;
+        }
+
+        /**
+         * Backs a bounded queue with a preallocated ring buffer instead of linked
+         * nodes plus separate capacity accounting: no allocation per element and
+         * a single CAS per insertion or removal. A capacity that is not a power
+         * of two costs an extra read per insertion, and the iterator does not
+         * support removal.
+         */
+        public Builder<E> arrayBacked(boolean arrayBacked)
+        {
+            this.arrayBacked = arrayBacked;
+            return this;
+        }
+
+        /**
+         * Promises that at most one thread at a time inserts elements; only
+         * supported together with {@link #singleConsumer(boolean)}.
+         */
+        public Builder<E> singleProducer(boolean singleProducer)
+        {
+            this.singleProducer = singleProducer;
+            return this;
+        }
+
+        /**
+         * Promises that at most one thread at a time removes elements, letting
+         * an unbounded queue use a consumer side without CAS and a single waiter
+         * slot. Removal of arbitrary elements is not supported.
+         */
+        public Builder<E> singleConsumer(boolean singleConsumer)
+        {
+            this.singleConsumer = singleConsumer;
+            return this;
+        }
+
+        /**
+         * Spreads the elements of an unbounded queue over the given number of
+         * internal lanes, rounded up to a power of two, so that producers and
+         * consumers mostly contend per lane instead of on one head and tail.
+         * Each producer inserts into its own lane and each consumer prefers its
+         * own lane and steals from the others when that is empty, so FIFO order
+         * only holds per producer lane, not globally. Waiting consumers still
+         * park on one shared queue, so no element is stranded in a lane while a
+         * consumer sleeps.
+         */
+        public Builder<E> lanes(int lanes)
+        {
+            if (lanes <= 0)
+            {
+                throw new IllegalArgumentException("lanes must be > 0");
+            }
+
+            this.lanes = lanes;
+            return this;
+        }
+
+        /**
+         * Wakes the most recently parked waiter first instead of the longest
+         * waiting one, so that a few threads with hot caches serve the load while
+         * surplus ones stay parked. Waiters then always allocate a fresh marker,
+         * regardless of {@link #reuseMarkers(boolean)}.
+         */
+        public Builder<E> lifoWakeup(boolean lifoWakeup)
+        {
+            this.lifoWakeup = lifoWakeup;
+            return this;
+        }
+
+        /**
+         * Stores the elements of an unbounded queue in linked chunks of
+         * {@value Chunked#CHUNK_SIZE} slots instead of one linked node each, so
+         * that only one object is allocated per chunk. The iterator does not
+         * support removal, and neither does {@link #remove(Object)}.
+         */
+        public Builder<E> chunked(boolean chunked)
+        {
+            this.chunked = chunked;
+            return this;
+        }
+
+        /**
+         * Caps the number of woken waiters that have not yet got to run at the
+         * given number, typically the number of carrier threads when the waiters
+         * are virtual threads: a burst of elements then no longer makes every
+         * parked consumer runnable at once, only for most of them to find the
+         * queue empty again. Wakeups beyond the cap are deferred and passed on
+         * by the woken threads as they resume, so no waiter is left parked while
+         * there is work. No cap if never called. None of the wait paths hold a
+         * monitor, so parking never pins a carrier thread either way.
+         */
+        public Builder<E> wakeupLimit(int wakeupLimit)
+        {
+            if (wakeupLimit <= 0)
+            {
+                throw new IllegalArgumentException("wakeupLimit must be > 0");
+            }
+
+            this.wakeupLimit = wakeupLimit;
+            return this;
+        }
+
+        /**
+         * Makes the queue count parks, unparks, spurious wakeups, re-checks that
+         * found an element before parking, skipped markers and failed CAS on the
+         * capacity accounting, and time the parks, into a {@link QueueStats} read
+         * through {@link ConcurrentLinkedBlockingQueue#stats()}. Costs a few
+         * striped counter increments and two {@link System#nanoTime()} calls per
+         * park; without it the hot paths only test a null field.
+         */
+        public Builder<E> stats(boolean stats)
+        {
+            this.stats = stats;
+            return this;
+        }
+
+        public ConcurrentLinkedBlockingQueue<E> build()
+        {
+            checkCapacityOptions();
+
+            if (chunked && (capacity != 0 || singleConsumer || lanes > 1))
+            {
+                throw new IllegalStateException("a chunked queue is unbounded, multi-consumer and has one lane");
+            }
+
+            if (lanes > 1 && (capacity != 0 || singleConsumer))
+            {
+                throw new IllegalStateException("a multi-lane queue is unbounded and multi-consumer");
+            }
+
+            if (singleProducer && !singleConsumer)
+            {
+                throw new IllegalStateException("a single producer queue needs a single consumer");
+            }
+
+            if (capacity == 0)
+            {
+                if (arrayBacked)
                 {
-                    return true;
+                    throw new IllegalStateException("an array backed queue needs a capacity");
                 }
 
-                if (marker.parked)
+                if (singleConsumer)
                 {
-                    LockSupport.unpark(marker.thread);
-                    return true;
+                    return new ConcurrentLinkedBlockingQueue<E>(singleProducer
+                                    ? new Spsc<E>(this)
+                                    : new Mpsc<E>(this));
+                }
+
+                if (chunked)
+                {
+                    return new ConcurrentLinkedBlockingQueue<E>(new Chunked<E>(this));
                 }
+
+                return new ConcurrentLinkedBlockingQueue<E>(lanes > 1
+                                ? new Laned<E>(this)
+                                : new Unbounded<E>(this));
+            }
+
+            if (singleConsumer)
+            {
+                throw new IllegalStateException("a single consumer queue is unbounded");
             }
+
+            return new ConcurrentLinkedBlockingQueue<E>(arrayBacked
+                            ? new ArrayBounded<E>(this)
+                            : new Bounded<E>(this));
         }
 
-        @Override
-        public E peek()
+        /**
+         * Rejects capacity options that would otherwise be silently ignored.
+         */
+        private void checkCapacityOptions()
         {
-            return _q.peek();
+            if (capacitySlack != 0 && capacity == 0)
+            {
+                throw new IllegalArgumentException("striped capacity needs a capacity");
+            }
+
+            if (capacitySlack != 0 && arrayBacked)
+            {
+                throw new IllegalArgumentException("an array backed queue has no striped capacity");
+            }
+
+            if (countSize && capacity != 0)
+            {
+                throw new IllegalArgumentException("a bounded queue always counts its size");
+            }
         }
 
-        @Override
-        public E poll()
+        /**
+         * Builds a {@link ConcurrentLinkedTransferQueue}, which is unbounded and
+         * multi-consumer, with the marker and wait options of this builder.
+         */
+        public ConcurrentLinkedTransferQueue<E> buildTransferQueue()
         {
-            return _q.poll();
+            checkCapacityOptions();
+
+            if (capacity != 0 || arrayBacked || singleConsumer || lanes > 1 || chunked)
+            {
+                throw new IllegalStateException("a transfer queue is unbounded and multi-consumer");
+            }
+
+            return new ConcurrentLinkedTransferQueue<E>(new ConcurrentLinkedTransferQueue.Transferring<E>(this));
         }
+    }
+
+    /**
+     * Base of the queue implementations behind the public class, adding the bulk
+     * operations to {@link BlockingQueue}; the defaults insert one by one.
+     */
+    protected abstract static class Impl<E> extends AbstractQueue<E> implements BlockingQueue<E>
+    {
+        // hot-path counters, null unless built with stats
+        protected final QueueStats _stats;
+        protected final WaitStrategy _waitStrategy;
+
+        protected Impl()
+        {
+            _stats = null;
+            _waitStrategy = WaitStrategy.PARK;
+        }
+
+        protected Impl(Builder<?> builder)
+        {
+            _stats = builder.stats ? new QueueStats() : null;
+            _waitStrategy = builder.waitStrategy;
+        }
+
+        /**
+         * Returns the hot-path counters of this queue, or null if it does not
+         * record any.
+         */
+        public QueueStats stats()
+        {
+            return _stats;
+        }
+
+        /**
+         * Returns the number of stale markers skipped by wakers of all park queues.
+         */
+        public long skippedMarkers()
+        {
+            return 0;
+        }
+
+        /**
+         * Returns the park queue consumers wait in, or null if there is none
+         * that async consumers could wait in.
+         */
+        protected ParkQueue consumerParkQueue()
+        {
+            return null;
+        }
+
+        /**
+         * Returns the park queue producers wait for space in, or null if the
+         * queue is unbounded.
+         */
+        protected ParkQueue producerParkQueue()
+        {
+            return null;
+        }
+
+        /**
+         * Takes the head element without waiting and accounts for its removal;
+         * returns null if there is none.
+         */
+        protected abstract E dequeue();
 
-        @Override
         public E take() throws InterruptedException
         {
+            return awaitElement(-1);
+        }
+
+        public E poll(final long timeout, final TimeUnit unit) throws InterruptedException
+        {
+            // treat negative timeout same as to wait forever
+            return awaitElement(timeout < 0 ? -1 : unit.toNanos(timeout));
+        }
+
+        /**
+         * Waits for an element, for at most the given time unless negative, in
+         * the consumer park queue once the wait strategy gives up. The re-check
+         * after linking in only looks, and the element is taken on the next
+         * round, so that an element handed to the marker meanwhile is never
+         * taken on top of another one.
+         */
+        @SuppressWarnings("unchecked")
+        private E awaitElement(long nanos) throws InterruptedException
+        {
+            final ParkQueue parkq = consumerParkQueue();
+            final long t1 = System.nanoTime() + nanos;
+            int attempt = 0;
+
             for (;;)
             {
-                E e = _q.poll();
+                E e = dequeue();
 
                 if (e != null)
                 {
                     return e;
                 }
 
-                ThreadMarker m = new ThreadMarker(Thread.currentThread());
+                final long duration = t1 - System.nanoTime();
+
+                if (nanos >= 0 && duration <= 0)
+                {
+                    return null; // time out
+                }
+
+                final boolean idled = _waitStrategy.idle(attempt);
+                attempt = WaitStrategy.next(attempt);
+
+                if (idled)
+                {
+                    if (Thread.interrupted())
+                    {
+                        throw new InterruptedException();
+                    }
+
+                    continue;
+                }
+
+                ThreadMarker m = parkq.marker();
 
                 if (Thread.interrupted())
                 {
@@ -215,20 +787,35 @@ public class ConcurrentLinkedBlockingQueue<E> extends AbstractQueue<E>
                     throw new InterruptedException();
                 }
 
-                _parkq.offer(m);
+                parkq.enqueue(m);
+
                 // check again in case there is data race
-                e = _q.poll();
+                if (!isEmpty())
+                {
+                    // data race indeed
+                    parkq.recheckWon(m);
+                }
+                else
+                {
+                    if (nanos < 0)
+                    {
+                        parkq.park(m);
+                    }
+                    else
+                    {
+                        parkq.parkNanos(m, duration);
+                    }
+
+                    parkq.leave(m);
+                }
+
+                e = (E)m.handedOff();
 
                 if (e != null)
                 {
-                    // data race indeed
-                    m.parked = false;
                     return e;
                 }
 
-                LockSupport.park();
-                m.parked = false;
-
                 if (Thread.interrupted())
                 {
                     throw new InterruptedException();
@@ -236,60 +823,2119 @@ public class ConcurrentLinkedBlockingQueue<E> extends AbstractQueue<E>
             }
         }
 
-        @Override
-        public E poll(final long timeout, final TimeUnit unit) throws InterruptedException
+        /**
+         * Inserts the given element, waiting for space in the producer park queue
+         * once the wait strategy gives up, for at most the given time unless
+         * negative; returns false on time out. Backs put and the timed offer of
+         * bounded queues.
+         */
+        protected final boolean awaitSpace(E e, long nanos) throws InterruptedException
         {
-            if (timeout < 0)
+            final ParkQueue putparkq = producerParkQueue();
+            final long t1 = System.nanoTime() + nanos;
+            int attempt = 0;
+
+            for (;;)
             {
-                // treat negative timeout same as to wait forever
-                return take();
-            }
+                if (offer(e))
+                {
+                    return true;
+                }
 
-            final long t1 = System.nanoTime() + unit.toNanos(timeout);
+                final long duration = t1 - System.nanoTime();
+
+                if (nanos >= 0 && duration <= 0)
+                {
+                    return false; // time out
+                }
+
+                final boolean idled = _waitStrategy.idle(attempt);
+                attempt = WaitStrategy.next(attempt);
+
+                if (idled)
+                {
+                    if (Thread.interrupted())
+                    {
+                        throw new InterruptedException();
+                    }
+
+                    continue;
+                }
+
+                ThreadMarker m = putparkq.marker();
+
+                if (Thread.interrupted())
+                {
+                    // avoid the putparkq.offer(m) if already interrupted
+                    throw new InterruptedException();
+                }
+
+                putparkq.enqueue(m);
+
+                // check again in case there is data race
+                if (offer(e))
+                {
+                    // data race indeed
+                    putparkq.recheckWon(m);
+                    return true;
+                }
+
+                if (nanos < 0)
+                {
+                    putparkq.park(m);
+                }
+                else
+                {
+                    putparkq.parkNanos(m, duration);
+                }
+
+                putparkq.leave(m);
+
+                if (Thread.interrupted())
+                {
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        public CompletableFuture<E> takeAsync(Executor executor)
+        {
+            return pollAsync(-1, TimeUnit.NANOSECONDS, executor);
+        }
+
+        public CompletableFuture<E> pollAsync(long timeout, TimeUnit unit, Executor executor)
+        {
+            E e = poll();
+
+            if (e != null || timeout == 0)
+            {
+                return CompletableFuture.completedFuture(e);
+            }
+
+            ParkQueue parkq = consumerParkQueue();
+
+            if (parkq == null)
+            {
+                throw new UnsupportedOperationException("no async consumers on a single-consumer queue");
+            }
+
+            // treat negative timeout same as to wait forever
+            return new AsyncTake<E>(this, parkq, executor).start(timeout < 0 ? -1 : unit.toNanos(timeout));
+        }
+
+        public int offerAll(Collection<? extends E> c)
+        {
+            int i = 0;
+
+            for (E e : c)
+            {
+                if (!offer(e))
+                {
+                    break;
+                }
+
+                i++;
+            }
+
+            return i;
+        }
+
+        public void putAll(Collection<? extends E> c) throws InterruptedException
+        {
+            for (E e : c)
+            {
+                put(e);
+            }
+        }
+
+        public int takeBatch(Collection<? super E> c, int maxElements) throws InterruptedException
+        {
+            checkBatch(c, 1, maxElements);
+            c.add(take());
+            return 1 + drainTo(c, maxElements - 1);
+        }
+
+        public int takeBatch(Collection<? super E> c, int maxElements, long timeout, TimeUnit unit)
+            throws InterruptedException
+        {
+            checkBatch(c, 1, maxElements);
+            E e = poll(timeout, unit);
+
+            if (e == null)
+            {
+                return 0; // time out
+            }
+
+            c.add(e);
+            return 1 + drainTo(c, maxElements - 1);
+        }
+
+        public int takeBatch(Collection<? super E> c, int minElements, int maxElements, long linger,
+                             TimeUnit unit) throws InterruptedException
+        {
+            checkBatch(c, minElements, maxElements);
+            int n = takeBatch(c, maxElements);
+
+            if (n >= minElements)
+            {
+                return n;
+            }
+
+            final long t1 = System.nanoTime() + unit.toNanos(linger);
+
+            while (n < minElements)
+            {
+                final long duration = t1 - System.nanoTime();
+
+                if (duration <= 0)
+                {
+                    break; // lingered long enough
+                }
+
+                n += takeBatch(c, maxElements - n, duration, TimeUnit.NANOSECONDS);
+            }
+
+            return n;
+        }
+
+        private void checkBatch(Collection<? super E> c, int minElements, int maxElements)
+        {
+            if (c == this)
+            {
+                throw new IllegalArgumentException();
+            }
+
+            if (minElements <= 0 || maxElements < minElements)
+            {
+                throw new IllegalArgumentException("need 0 < minElements <= maxElements");
+            }
+        }
+    }
+
+    protected static class ThreadMarker
+    {
+        private static final int PARKED = 1;
+        private static final int QUEUED = 2;
+        private static final int HANDED = 4;
+        private static final AtomicIntegerFieldUpdater<ThreadMarker> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(ThreadMarker.class, "state");
+
+        final Thread thread;
+        // PARKED while the owner may be (about to be) parked, QUEUED while linked
+        // into a park queue; a reused marker flips these instead of being replaced.
+        // HANDED once a waker has handed an element to the owner.
+        private volatile int state;
+        // published by the write of HANDED, cleared by the owner
+        private Object item;
+
+        ThreadMarker(Thread t)
+        {
+            thread = t;
+        }
+
+        /**
+         * Marks the owner as about to park; returns whether the marker must be
+         * (re-)linked into the park queue, i.e. it is not there already.
+         */
+        boolean arm()
+        {
+            for (;;)
+            {
+                int s = state;
+
+                if (STATE.compareAndSet(this, s, PARKED | QUEUED))
+                {
+                    return (s & QUEUED) == 0;
+                }
+            }
+        }
+
+        /**
+         * Called by the owner once it stops waiting; returns whether the marker
+         * is still queued, i.e. no waker took it off the park queue.
+         */
+        boolean disarm()
+        {
+            for (;;)
+            {
+                int s = state;
+
+                if ((s & PARKED) == 0 || STATE.compareAndSet(this, s, s & ~PARKED))
+                {
+                    return (s & QUEUED) != 0;
+                }
+            }
+        }
+
+        /**
+         * Clears PARKED for an owner that stops waiting before being woken, so
+         * that no waker claims the marker any more; returns false if a waker
+         * got there first.
+         */
+        boolean withdraw()
+        {
+            for (;;)
+            {
+                int s = state;
+
+                if ((s & PARKED) == 0)
+                {
+                    return false;
+                }
+
+                if (STATE.compareAndSet(this, s, s & ~PARKED))
+                {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Returns whether the owner may still be parked, i.e. no waker has
+         * signalled it or handed it an element since it armed the marker.
+         */
+        boolean armed()
+        {
+            return (state & PARKED) != 0;
+        }
+
+        /**
+         * Claims a queued marker whose owner has stopped waiting so that it can be
+         * unlinked; returns false if it is in use or already taken.
+         */
+        boolean cancel()
+        {
+            return STATE.compareAndSet(this, QUEUED, 0);
+        }
+
+        /**
+         * Called after the marker has been taken off the park queue; returns
+         * whether its owner was parked and thus needs an unpark.
+         */
+        boolean signal()
+        {
+            return (STATE.getAndSet(this, 0) & PARKED) != 0;
+        }
+
+        /**
+         * Like {@link #signal()}, but also hands the given element to the owner
+         * if it is still parked; returns whether it was handed over.
+         */
+        boolean handoff(Object e)
+        {
+            for (;;)
+            {
+                int s = state;
+
+                if ((s & PARKED) == 0)
+                {
+                    if (STATE.compareAndSet(this, s, 0))
+                    {
+                        return false;
+                    }
+
+                    continue;
+                }
+
+                item = e;
+
+                if (STATE.compareAndSet(this, s, HANDED))
+                {
+                    return true;
+                }
+
+                item = null;
+            }
+        }
+
+        /**
+         * Wakes up the owner after a waker signalled it or handed it an element.
+         */
+        void unpark()
+        {
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * Called by the owner after it stopped waiting; returns the element
+         * handed to it, if any.
+         */
+        Object handedOff()
+        {
+            if (state != HANDED)
+            {
+                return null;
+            }
+
+            Object e = item;
+            item = null;
+            state = 0;
+            return e;
+        }
+    }
+
+    /**
+     * Queue of {@link ThreadMarker}s of threads waiting on one condition. With
+     * marker reuse each thread owns one marker per park queue, which is linked
+     * into the queue at most once at a time, so a bounded ring holds all of them
+     * in the common case; any excess spills into a linked overflow queue.
+     * <p>
+     * Waiters are counted from just before they link their marker until they stop
+     * waiting, so wakers can skip the queue entirely while nobody waits. A waiter
+     * increments the count before re-checking its condition and a waker changes
+     * the condition before reading the count, so at least one of them sees the
+     * other and no wakeup is lost.
+     * <p>
+     * A waiter that stops waiting without being woken (time out, interrupt, or
+     * an element found on its re-check) leaves its marker behind. A reused marker
+     * is simply re-armed by its owner later, but a fresh marker per wait would
+     * pile up, so once enough of them went stale the leaving waiter unlinks all
+     * stale markers from the overflow queue in one pass. The markers of
+     * {@link AsyncTake async consumers} count as fresh ones either way.
+     * <p>
+     * A LIFO park queue wakes the most recently parked thread instead, keeping a
+     * small set of threads with hot caches busy while surplus ones stay asleep.
+     * It keeps its markers on a linked stack and allocates a fresh one per wait,
+     * since a reused marker that is still linked would keep its old position.
+     * <p>
+     * With a wakeup limit, at most that many woken threads are in flight, i.e.
+     * unparked but not yet done leaving. A wakeup beyond the limit is deferred,
+     * and each woken thread passes one deferred wakeup on as it leaves, so all
+     * wakeups still happen, but only as fast as the woken threads get to run.
+     * A waker defers before re-checking the number in flight, and a leaving
+     * thread decrements that number before claiming a deferred wakeup, so one
+     * of them always sees the other.
+     */
+    protected static class ParkQueue
+    {
+        private static final int RING_CAPACITY =
+            Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+        private static final int PURGE_THRESHOLD = 64;
+
+        private final Queue<ThreadMarker> _overflow;
+        private final MpmcRing<ThreadMarker> _ring;
+        private final ThreadLocal<ThreadMarker> _markers;
+        private final AtomicInteger _waiters = new AtomicInteger();
+        // markers left behind since the last purge, without marker reuse only
+        private final AtomicInteger _stale = new AtomicInteger();
+        private final LongAdder _skipped = new LongAdder();
+        // null unless the owning queue records statistics
+        private final QueueStats _stats;
+        // 0 for no limit; otherwise the woken threads in flight and the
+        // wakeups deferred until one of them leaves
+        private final int _wakeupLimit;
+        private final AtomicInteger _waking = new AtomicInteger();
+        private final AtomicInteger _deferred = new AtomicInteger();
+
+        ParkQueue(boolean reuseMarkers)
+        {
+            this(reuseMarkers, false, null, 0);
+        }
+
+        ParkQueue(Builder<?> builder, QueueStats stats)
+        {
+            this(builder.reuseMarkers, builder.lifoWakeup, stats, builder.wakeupLimit);
+        }
+
+        private ParkQueue(boolean reuseMarkers, boolean lifo, QueueStats stats, int wakeupLimit)
+        {
+            _stats = stats;
+            _wakeupLimit = wakeupLimit;
+            _overflow = lifo
+                            ? Collections.asLifoQueue(new ConcurrentLinkedDeque<ThreadMarker>())
+                            : new ConcurrentLinkedQueue<ThreadMarker>();
+
+            if (reuseMarkers && !lifo)
+            {
+                _ring = new MpmcRing<ThreadMarker>(RING_CAPACITY);
+                _markers = new ThreadLocal<ThreadMarker>()
+                {
+                    @Override
+                    protected ThreadMarker initialValue()
+                    {
+                        return new ThreadMarker(Thread.currentThread());
+                    }
+                };
+            }
+            else
+            {
+                _ring = null;
+                _markers = null;
+            }
+        }
+
+        /**
+         * Returns the marker the current thread should wait with.
+         */
+        ThreadMarker marker()
+        {
+            return _markers == null ? new ThreadMarker(Thread.currentThread()) : _markers.get();
+        }
+
+        /**
+         * Arms the given marker of the current thread and links it in if needed;
+         * must be followed by exactly one {@link #leave(ThreadMarker)}.
+         */
+        void enqueue(ThreadMarker m)
+        {
+            _waiters.incrementAndGet();
+
+            if (m.arm() && (_ring == null || !_ring.offer(m)))
+            {
+                _overflow.offer(m);
+            }
+        }
+
+        /**
+         * Called by the current thread once it stops waiting with the given marker.
+         */
+        void leave(ThreadMarker m)
+        {
+            if (m.disarm())
+            {
+                if ((_markers == null || m.thread == null) && _stale.incrementAndGet() == PURGE_THRESHOLD)
+                {
+                    purge();
+                }
+            }
+            else if (_wakeupLimit > 0)
+            {
+                // we were woken; make room for a deferred wakeup
+                _waking.decrementAndGet();
+
+                if (claimDeferred())
+                {
+                    wake();
+                }
+            }
+
+            _waiters.decrementAndGet();
+        }
+
+        private boolean claimDeferred()
+        {
+            for (;;)
+            {
+                int deferred = _deferred.get();
+
+                if (deferred == 0)
+                {
+                    return false;
+                }
+
+                if (_deferred.compareAndSet(deferred, deferred - 1))
+                {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Like {@link #leave(ThreadMarker)}, for a thread that found what it was
+         * waiting for on its re-check right after {@link #enqueue(ThreadMarker)}.
+         */
+        void recheckWon(ThreadMarker m)
+        {
+            if (_stats != null)
+            {
+                _stats.recheckWon();
+            }
+
+            leave(m);
+        }
+
+        /**
+         * Parks the current thread, which has enqueued the given marker, until it
+         * is woken up (or spuriously).
+         */
+        void park(ThreadMarker m)
+        {
+            if (_stats == null)
+            {
+                LockSupport.park();
+                return;
+            }
+
+            final long t0 = System.nanoTime();
+            LockSupport.park();
+            // still armed: neither signalled nor handed an element
+            _stats.parked(System.nanoTime() - t0, m.armed() && !Thread.currentThread().isInterrupted());
+        }
+
+        /**
+         * Like {@link #park(ThreadMarker)}, but for at most the given time.
+         */
+        void parkNanos(ThreadMarker m, long nanos)
+        {
+            if (_stats == null)
+            {
+                LockSupport.parkNanos(nanos);
+                return;
+            }
+
+            final long t0 = System.nanoTime();
+            LockSupport.parkNanos(nanos);
+            final long parked = System.nanoTime() - t0;
+            _stats.parked(parked, parked < nanos && m.armed() && !Thread.currentThread().isInterrupted());
+        }
+
+        /**
+         * Unlinks the markers of threads that stopped waiting from the overflow
+         * queue.
+         */
+        private void purge()
+        {
+            _stale.addAndGet(-PURGE_THRESHOLD);
+
+            for (Iterator<ThreadMarker> it = _overflow.iterator(); it.hasNext();)
+            {
+                if (it.next().cancel())
+                {
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * Returns the number of markers wakers had to skip because their owners
+         * had stopped waiting.
+         */
+        long skipped()
+        {
+            return _skipped.sum();
+        }
+
+        /**
+         * Returns the number of threads that are (potentially) parked.
+         */
+        int waiters()
+        {
+            return _waiters.get();
+        }
+
+        ThreadMarker poll()
+        {
+            ThreadMarker m = _ring == null ? null : _ring.poll();
+            return m != null ? m : _overflow.poll();
+        }
+
+        /**
+         * Unparks up to the given number of parked threads; returns how many.
+         */
+        int unpark(int n)
+        {
+            int i = 0;
+
+            while (i < n && unparkOne())
+            {
+                i++;
+            }
+
+            return i;
+        }
+
+        /**
+         * Unparks the longest waiting parked thread, skipping stale markers, or
+         * defers that if the wakeup limit is reached; returns false if nobody
+         * waits.
+         */
+        boolean unparkOne()
+        {
+            if (_waiters.get() == 0)
+            {
+                return false;
+            }
+
+            if (_wakeupLimit > 0 && _waking.get() >= _wakeupLimit)
+            {
+                // pending wakeups beyond the number of waiters would be wasted
+                if (_deferred.get() < _waiters.get())
+                {
+                    _deferred.incrementAndGet();
+                }
+
+                // unless the threads in flight all left meanwhile
+                if (_waking.get() >= _wakeupLimit || !claimDeferred())
+                {
+                    return true;
+                }
+            }
+
+            return wake();
+        }
+
+        private boolean wake()
+        {
+            for (;;)
+            {
+                ThreadMarker marker = poll();
+
+                if (marker == null)
+                {
+                    return false;
+                }
+
+                if (marker.signal())
+                {
+                    unpark(marker);
+                    return true;
+                }
+
+                skip();
+            }
+        }
+
+        /**
+         * Hands the given element to the longest waiting parked thread and
+         * unparks it; returns false if there is none. Only for park queues
+         * whose waiters look for {@link ThreadMarker#handedOff()}.
+         */
+        boolean handoff(Object e)
+        {
+            if (_waiters.get() == 0 || _wakeupLimit > 0 && _waking.get() >= _wakeupLimit)
+            {
+                return false;
+            }
+
+            for (;;)
+            {
+                ThreadMarker marker = poll();
+
+                if (marker == null)
+                {
+                    return false;
+                }
+
+                if (marker.handoff(e))
+                {
+                    unpark(marker);
+                    return true;
+                }
+
+                skip();
+            }
+        }
+
+        private void unpark(ThreadMarker marker)
+        {
+            if (_wakeupLimit > 0)
+            {
+                _waking.incrementAndGet();
+            }
+
+            marker.unpark();
+
+            if (_stats != null)
+            {
+                _stats.unparked();
+            }
+        }
+
+        private void skip()
+        {
+            _skipped.increment();
+
+            if (_stats != null)
+            {
+                _stats.skipped();
+            }
+        }
+    }
+
+    /**
+     * A consumer waiting without a thread of its own. Its marker waits in the
+     * park queue like that of a parked thread, and a waker that would unpark a
+     * thread instead resumes it in the waker's thread: it polls the queue and
+     * completes its future, or links its marker in again if another consumer
+     * got the element first.
+     * <p>
+     * Whoever clears the PARKED bit of the marker (a waker, the owner after its
+     * re-check, a cancellation or the timeout) owns the consumer until it links
+     * its marker in again or is done, so that only one of them polls at a time
+     * and no element is taken for a future that can no longer be completed. The
+     * re-check after linking in only peeks for the same reason.
+     */
+    protected static final class AsyncTake<E> extends ThreadMarker
+    {
+        private final Impl<E> _impl;
+        private final ParkQueue _parkq;
+        private final Executor _executor;
+        private final CompletableFuture<E> _future;
+        private volatile boolean _cancelled;
+        private volatile boolean _expired;
+        private volatile ScheduledFuture<?> _timeout;
+
+        AsyncTake(Impl<E> impl, ParkQueue parkq, Executor executor)
+        {
+            super(null);
+            _impl = impl;
+            _parkq = parkq;
+            _executor = executor;
+            _future = new CompletableFuture<E>()
+            {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning)
+                {
+                    return abort();
+                }
+            };
+        }
+
+        /**
+         * Starts waiting, for at most the given time unless negative; returns
+         * the future of the element.
+         */
+        CompletableFuture<E> start(long nanos)
+        {
+            await();
+
+            if (nanos > 0 && !_future.isDone())
+            {
+                _timeout = Timer.INSTANCE.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        _expired = true;
+                        resumeIfWaiting();
+                    }
+                }, nanos, TimeUnit.NANOSECONDS);
+
+                if (_future.isDone())
+                {
+                    _timeout.cancel(false);
+                }
+            }
+
+            return _future;
+        }
+
+        @Override
+        void unpark()
+        {
+            _parkq.leave(this);
+            await();
+        }
+
+        private boolean abort()
+        {
+            _cancelled = true;
+            resumeIfWaiting();
+            return _future.isCancelled();
+        }
+
+        /**
+         * Takes over from the park queue unless a waker did already, in which
+         * case the owner sees why on its next turn.
+         */
+        private void resumeIfWaiting()
+        {
+            if (withdraw())
+            {
+                _parkq.leave(this);
+                await();
+            }
+        }
+
+        /**
+         * Tries to take an element, and otherwise either finishes or links the
+         * marker in; only called by the current owner, with the marker disarmed.
+         */
+        @SuppressWarnings("unchecked")
+        private void await()
+        {
+            for (;;)
+            {
+                // handed over by a transferring queue; ours no matter what
+                E e = (E)handedOff();
+
+                if (e == null && !_cancelled && !_future.isDone())
+                {
+                    e = _impl.poll();
+                }
+
+                if (e != null)
+                {
+                    complete(e);
+                    return;
+                }
+
+                if (_cancelled || _expired || _future.isDone())
+                {
+                    finish();
+                    return;
+                }
+
+                _parkq.enqueue(this);
+
+                // a cancellation or timeout that found us unarmed is seen here
+                if (_impl.peek() == null && !_cancelled && !_expired)
+                {
+                    return;
+                }
+
+                if (!withdraw())
+                {
+                    // a waker, cancellation or timeout owns us now
+                    return;
+                }
+
+                _parkq.recheckWon(this);
+            }
+        }
+
+        private void complete(final E e)
+        {
+            cancelTimeout();
+
+            if (_executor != null)
+            {
+                try
+                {
+                    _executor.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            _future.complete(e);
+                        }
+                    });
+                    return;
+                }
+                catch (RejectedExecutionException ex)
+                {
+                    // the element is ours already; complete right here
+                }
+            }
+
+            _future.complete(e);
+        }
+
+        private void finish()
+        {
+            cancelTimeout();
+
+            if (_cancelled)
+            {
+                _future.completeExceptionally(new CancellationException());
+            }
+            else
+            {
+                _future.complete(null);
+            }
+
+            // the wakeup we used up may have been meant for an element still there
+            if (_impl.peek() != null)
+            {
+                _parkq.unparkOne();
+            }
+        }
+
+        private void cancelTimeout()
+        {
+            ScheduledFuture<?> timeout = _timeout;
+
+            if (timeout != null)
+            {
+                timeout.cancel(false);
+            }
+        }
+
+        /**
+         * Daemon thread timing out the async consumers of all queues.
+         */
+        private static final class Timer
+        {
+            static final ScheduledThreadPoolExecutor INSTANCE = newTimer();
+
+            private static ScheduledThreadPoolExecutor newTimer()
+            {
+                ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "ConcurrentLinkedBlockingQueue-timeout");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                timer.setRemoveOnCancelPolicy(true);
+                return timer;
+            }
+        }
+    }
+
+    protected static class Unbounded<E> extends Impl<E>
+    {
+        protected final ParkQueue _parkq;
+        protected final ConcurrentLinkedQueue<E> _q;
+        // striped element count, null unless size() should not traverse _q
+        private final LongAdder _count;
+
+        public Unbounded()
+        {
+            _parkq = new ParkQueue(false);
+            _q = new ConcurrentLinkedQueue<E>();
+            _count = null;
+        }
+
+        public Unbounded(Collection<? extends E> c)
+        {
+            _parkq = new ParkQueue(false);
+            _q = new ConcurrentLinkedQueue<E>(c);
+            _count = null;
+        }
+
+        protected Unbounded(Builder<?> builder)
+        {
+            super(builder);
+            _parkq = new ParkQueue(builder, _stats);
+            _q = new ConcurrentLinkedQueue<E>();
+            _count = builder.countSize ? new LongAdder() : null;
+        }
+
+        @Override
+        protected ParkQueue consumerParkQueue()
+        {
+            return _parkq;
+        }
+
+        @Override
+        public long skippedMarkers()
+        {
+            return _parkq.skipped();
+        }
+
+        /**
+         * Iterates over {@link #_q}; removal through the iterator goes through
+         * {@link #remove(Object)}, i.e. removes the first equal element, so that
+         * the accounting of removed elements stays consistent.
+         */
+        @Override
+        public Iterator<E> iterator()
+        {
+            final Iterator<E> it = _q.iterator();
+
+            return new Iterator<E>()
+            {
+                private E _last;
+
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                public E next()
+                {
+                    return _last = it.next();
+                }
+
+                public void remove()
+                {
+                    if (_last == null)
+                    {
+                        throw new IllegalStateException();
+                    }
+
+                    Unbounded.this.remove(_last);
+                    _last = null;
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            if (_count == null)
+            {
+                return _q.size();
+            }
+
+            long count = _count.sum();
+            return count < 0 ? 0 : (count > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)count);
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            if (_q.remove(o))
+            {
+                removed(1);
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Polls {@link #_q} and accounts for the removal.
+         */
+        @Override
+        protected E dequeue()
+        {
+            E e = _q.poll();
+
+            if (e != null)
+            {
+                removed(1);
+            }
+
+            return e;
+        }
+
+        /**
+         * Called after the given number of elements left {@link #_q}.
+         */
+        protected void removed(int n)
+        {
+            if (_count != null)
+            {
+                _count.add(-n);
+            }
+        }
+
+        @Override
+        public boolean offer(E e)
+        {
+            _q.offer(e);
+
+            if (_count != null)
+            {
+                _count.increment();
+            }
+
+            _parkq.unparkOne();
+            return true;
+        }
+
+        @Override
+        public int offerAll(Collection<? extends E> c)
+        {
+            final int n = c.size();
+
+            if (!_q.addAll(c))
+            {
+                return 0;
+            }
+
+            if (_count != null)
+            {
+                _count.add(n);
+            }
+
+            _parkq.unpark(n);
+            return n;
+        }
+
+        @Override
+        public void putAll(Collection<? extends E> c) throws InterruptedException
+        {
+            offerAll(c);
+        }
+
+        @Override
+        public E peek()
+        {
+            return _q.peek();
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return _q.isEmpty();
+        }
+
+        @Override
+        public E poll()
+        {
+            return dequeue();
+        }
+
+        @Override
+        public void put(E e) throws InterruptedException
+        {
+            offer(e);
+        }
+
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return offer(e);
+        }
+
+        @Override
+        public int remainingCapacity()
+        {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c)
+        {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Removes a run of elements and accounts for all of them at once.
+         */
+        @Override
+        public int drainTo(Collection<? super E> c, int maxElements)
+        {
+            int i = 0;
+
+            try
+            {
+                E e;
+
+                while (i < maxElements && (e = _q.poll()) != null)
+                {
+                    // count first, the element is gone even if c rejects it
+                    i++;
+                    c.add(e);
+                }
+            }
+            finally
+            {
+                if (i > 0)
+                {
+                    removed(i);
+                }
+            }
+
+            return i;
+        }
+
+    }
+
+    protected static class Bounded<E> extends Unbounded<E>
+    {
+        private final int _maxCapacity;
+        private final Capacity _capacity;
+        private final ParkQueue _putparkq;
+
+        public Bounded(int capacity)
+        {
+            if (capacity <= 0)
+            {
+                throw new IllegalArgumentException("capacity must be > 0");
+            }
+
+            _maxCapacity = capacity;
+            _putparkq = new ParkQueue(false);
+            _capacity = new Capacity.Exact(capacity, null);
+        }
+
+        protected Bounded(Builder<?> builder)
+        {
+            super(builder);
+            _maxCapacity = builder.capacity;
+            _putparkq = new ParkQueue(builder, _stats);
+            _capacity = builder.capacitySlack == 0
+                            ? new Capacity.Exact(builder.capacity, _stats)
+                            : new Capacity.Striped(builder.capacity, builder.capacitySlack, _putparkq, _stats);
+        }
+
+        public Bounded(int capacity, Collection<? extends E> c)
+        {
+            this(capacity);
+
+            if (capacity < c.size())
+            {
+                throw new IllegalArgumentException("capacity must be > collection");
+            }
+
+            for (E e : c)
+            {
+                add(e);
+            }
+        }
+
+        @Override
+        protected ParkQueue producerParkQueue()
+        {
+            return _putparkq;
+        }
+
+        @Override
+        public long skippedMarkers()
+        {
+            return super.skippedMarkers() + _putparkq.skipped();
+        }
+
+        @Override
+        public boolean offer(E e)
+        {
+            if (_capacity.tryAcquire())
+            {
+                return super.offer(e);
+            }
+
+            return false;
+        }
+
+        @Override
+        public int offerAll(Collection<? extends E> c)
+        {
+            return offerAll(snapshot(c));
+        }
+
+        /**
+         * Reserves capacity for as many of the given elements as possible at once
+         * and links those in.
+         */
+        private int offerAll(List<E> batch)
+        {
+            final int n = batch.size();
+
+            if (n == 0)
+            {
+                return 0;
+            }
+
+            final int acquired = _capacity.tryAcquire(n);
+
+            if (acquired == 0)
+            {
+                return 0;
+            }
+
+            try
+            {
+                return super.offerAll(acquired == n ? batch : batch.subList(0, acquired));
+            }
+            catch (RuntimeException ex)
+            {
+                // nothing was linked, e.g. on a null element
+                _capacity.release(acquired);
+                _putparkq.unpark(acquired);
+                throw ex;
+            }
+        }
+
+        @Override
+        public void putAll(Collection<? extends E> c) throws InterruptedException
+        {
+            final List<E> batch = snapshot(c);
+            final int n = batch.size();
+            int i = 0;
+
+            while (i < n)
+            {
+                int added = offerAll(i == 0 ? batch : batch.subList(i, n));
+
+                if (added == 0)
+                {
+                    // no space at all, wait for some
+                    put(batch.get(i));
+                    added = 1;
+                }
+
+                i += added;
+            }
+        }
+
+        /**
+         * Returns a stable copy of the given collection, so that the number of
+         * elements linked matches the capacity reserved for them.
+         */
+        @SuppressWarnings("unchecked")
+        private static <E> List<E> snapshot(Collection<? extends E> c)
+        {
+            return (List<E>)Arrays.asList(c.toArray());
+        }
+
+        @Override
+        public void put(E e) throws InterruptedException
+        {
+            awaitSpace(e, -1);
+        }
+
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException
+        {
+            // treat negative timeout same as to wait forever
+            return awaitSpace(e, timeout < 0 ? -1 : unit.toNanos(timeout));
+        }
+
+        @Override
+        public int remainingCapacity()
+        {
+            return _capacity.remaining();
+        }
+
+        /**
+         * Derived from the capacity accounting, so elements being inserted are
+         * counted from the moment their producer has reserved space.
+         */
+        @Override
+        public int size()
+        {
+            return _maxCapacity - _capacity.remaining();
+        }
+
+        /**
+         * Returns the capacity of the removed elements and wakes up at most as many
+         * waiting producers.
+         */
+        @Override
+        protected void removed(int n)
+        {
+            _capacity.release(n);
+            _putparkq.unpark(n);
+        }
+
+    }
+
+    /**
+     * Bounded implementation on a preallocated {@link MpmcRing}, using the same
+     * marker based parking as {@link Bounded} for blocked consumers and producers.
+     */
+    protected static class ArrayBounded<E> extends Impl<E>
+    {
+        protected final MpmcRing<E> _ring;
+        protected final ParkQueue _parkq;
+        protected final ParkQueue _putparkq;
+
+        protected ArrayBounded(Builder<?> builder)
+        {
+            super(builder);
+            _ring = new MpmcRing<E>(builder.capacity);
+            _parkq = new ParkQueue(builder, _stats);
+            _putparkq = new ParkQueue(builder, _stats);
+        }
+
+        @Override
+        protected ParkQueue consumerParkQueue()
+        {
+            return _parkq;
+        }
+
+        @Override
+        protected ParkQueue producerParkQueue()
+        {
+            return _putparkq;
+        }
+
+        @Override
+        public long skippedMarkers()
+        {
+            return _parkq.skipped() + _putparkq.skipped();
+        }
+
+        @Override
+        public Iterator<E> iterator()
+        {
+            return _ring.iterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return _ring.size();
+        }
+
+        @Override
+        public boolean offer(E e)
+        {
+            if (e == null)
+            {
+                throw new NullPointerException();
+            }
+
+            if (!_ring.offer(e))
+            {
+                return false;
+            }
+
+            _parkq.unparkOne();
+            return true;
+        }
+
+        @Override
+        public E peek()
+        {
+            return _ring.peek();
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return _ring.isEmpty();
+        }
+
+        /**
+         * Polls {@link #_ring} and wakes up a producer waiting for the slot.
+         */
+        @Override
+        protected final E dequeue()
+        {
+            E e = _ring.poll();
+
+            if (e != null)
+            {
+                _putparkq.unparkOne();
+            }
+
+            return e;
+        }
+
+        @Override
+        public E poll()
+        {
+            return dequeue();
+        }
+
+        @Override
+        public void put(E e) throws InterruptedException
+        {
+            awaitSpace(e, -1);
+        }
+
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException
+        {
+            // treat negative timeout same as to wait forever
+            return awaitSpace(e, timeout < 0 ? -1 : unit.toNanos(timeout));
+        }
+
+        @Override
+        public int remainingCapacity()
+        {
+            return _ring.capacity() - _ring.size();
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c)
+        {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Removes a run of elements, then wakes up at most as many waiting
+         * producers as slots were freed.
+         */
+        @Override
+        public int drainTo(Collection<? super E> c, int maxElements)
+        {
+            int i = 0;
+
+            try
+            {
+                E e;
+
+                while (i < maxElements && (e = _ring.poll()) != null)
+                {
+                    i++;
+                    c.add(e);
+                }
+            }
+            finally
+            {
+                if (i > 0)
+                {
+                    _putparkq.unpark(i);
+                }
+            }
+
+            return i;
+        }
+
+    }
+
+    /**
+     * Unbounded queue of linked chunks of slots, after Ramalhete and Correia's
+     * FAA array queue: producers and consumers claim slots with a fetch-and-add
+     * on the chunk's enqueue and dequeue index. A producer publishes its element
+     * by a CAS from null, a consumer takes it by swapping in {@link #TAKEN}; a
+     * consumer that overtakes a producer thereby poisons the slot and the
+     * producer moves on to another one. Waiting uses the same park queue
+     * protocol as {@link Unbounded}.
+     * <p>
+     * Drained chunks are left to the garbage collector rather than recycled: a
+     * slow producer or consumer may still hold a chunk it claimed a slot in, and
+     * reusing it would need a reclamation scheme to avoid ABA on the indices.
+     */
+    protected static class Chunked<E> extends Impl<E>
+    {
+        static final int CHUNK_SIZE = 1024;
+        private static final Object TAKEN = new Object();
+
+        protected final ParkQueue _parkq;
+        private final AtomicReference<Chunk> _head;
+        private final AtomicReference<Chunk> _tail;
+        // striped element count, null unless size() should not traverse the chunks
+        private final LongAdder _count;
+
+        protected Chunked(Builder<?> builder)
+        {
+            super(builder);
+            Chunk chunk = new Chunk();
+            _parkq = new ParkQueue(builder, _stats);
+            _head = new MpmcRing.PaddedAtomicReference<Chunk>(chunk);
+            _tail = new MpmcRing.PaddedAtomicReference<Chunk>(chunk);
+            _count = builder.countSize ? new LongAdder() : null;
+        }
+
+        @Override
+        protected ParkQueue consumerParkQueue()
+        {
+            return _parkq;
+        }
+
+        @Override
+        public long skippedMarkers()
+        {
+            return _parkq.skipped();
+        }
+
+        private void enqueue(E e)
+        {
+            if (e == null)
+            {
+                throw new NullPointerException();
+            }
+
+            for (;;)
+            {
+                Chunk tail = _tail.get();
+                int i = Chunk.ENQ.getAndIncrement(tail);
+
+                if (i < CHUNK_SIZE)
+                {
+                    if (tail.slots.compareAndSet(i, null, e))
+                    {
+                        return;
+                    }
+
+                    continue; // poisoned by a consumer
+                }
+
+                Chunk next = tail.next;
+
+                if (next == null)
+                {
+                    Chunk chunk = new Chunk();
+                    next = Chunk.NEXT.compareAndSet(tail, null, chunk) ? chunk : tail.next;
+                }
+
+                _tail.compareAndSet(tail, next);
+            }
+        }
+
+        /**
+         * Takes the head element, if any, and accounts for the removal.
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        protected final E dequeue()
+        {
+            for (;;)
+            {
+                Chunk head = _head.get();
+
+                if (head.deq >= head.enq && head.next == null)
+                {
+                    return null;
+                }
+
+                int i = Chunk.DEQ.getAndIncrement(head);
+
+                if (i >= CHUNK_SIZE)
+                {
+                    Chunk next = head.next;
+
+                    if (next == null)
+                    {
+                        return null;
+                    }
+
+                    _head.compareAndSet(head, next);
+                    continue;
+                }
+
+                Object e = head.slots.getAndSet(i, TAKEN);
+
+                if (e != null)
+                {
+                    if (_count != null)
+                    {
+                        _count.decrement();
+                    }
+
+                    return (E)e;
+                }
+            }
+        }
+
+        @Override
+        public boolean offer(E e)
+        {
+            enqueue(e);
+
+            if (_count != null)
+            {
+                _count.increment();
+            }
+
+            _parkq.unparkOne();
+            return true;
+        }
+
+        @Override
+        public int offerAll(Collection<? extends E> c)
+        {
+            int n = 0;
+
+            try
+            {
+                for (E e : c)
+                {
+                    enqueue(e);
+                    n++;
+                }
+            }
+            finally
+            {
+                // the elements before a null one are linked in already
+                if (_count != null)
+                {
+                    _count.add(n);
+                }
+
+                _parkq.unpark(n);
+            }
+
+            return n;
+        }
+
+        @Override
+        public void putAll(Collection<? extends E> c) throws InterruptedException
+        {
+            offerAll(c);
+        }
+
+        /**
+         * Weakly consistent; removal is not supported.
+         */
+        @Override
+        public Iterator<E> iterator()
+        {
+            return new Iterator<E>()
+            {
+                private Chunk _chunk = _head.get();
+                private int _pos = Math.min(_chunk.deq, CHUNK_SIZE);
+                private E _next = advance();
+
+                @SuppressWarnings("unchecked")
+                private E advance()
+                {
+                    while (_chunk != null)
+                    {
+                        int end = Math.min(_chunk.enq, CHUNK_SIZE);
+
+                        while (_pos < end)
+                        {
+                            Object e = _chunk.slots.get(_pos++);
+
+                            if (e != null && e != TAKEN)
+                            {
+                                return (E)e;
+                            }
+                        }
+
+                        _chunk = _chunk.next;
+                        _pos = 0;
+                    }
+
+                    return null;
+                }
+
+                public boolean hasNext()
+                {
+                    return _next != null;
+                }
+
+                public E next()
+                {
+                    if (_next == null)
+                    {
+                        throw new NoSuchElementException();
+                    }
+
+                    E e = _next;
+                    _next = advance();
+                    return e;
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public E peek()
+        {
+            Iterator<E> it = iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+
+        /**
+         * Counts claimed slots of all chunks unless elements are counted; an
+         * estimate that includes elements still being published.
+         */
+        @Override
+        public int size()
+        {
+            long size = 0;
+
+            if (_count != null)
+            {
+                size = _count.sum();
+            }
+            else
+            {
+                for (Chunk chunk = _head.get(); chunk != null; chunk = chunk.next)
+                {
+                    int enq = Math.min(chunk.enq, CHUNK_SIZE);
+                    int deq = Math.min(chunk.deq, CHUNK_SIZE);
+
+                    if (enq > deq)
+                    {
+                        size += enq - deq;
+                    }
+                }
+            }
+
+            return size < 0 ? 0 : (size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)size);
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            Chunk head = _head.get();
+            return (head.deq >= head.enq || head.deq >= CHUNK_SIZE) && head.next == null;
+        }
+
+        @Override
+        public E poll()
+        {
+            return dequeue();
+        }
+
+        @Override
+        public void put(E e) throws InterruptedException
+        {
+            offer(e);
+        }
+
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return offer(e);
+        }
+
+        @Override
+        public int remainingCapacity()
+        {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c)
+        {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c, int maxElements)
+        {
+            int i = 0;
+            E e;
+
+            while (i < maxElements && (e = dequeue()) != null)
+            {
+                i++;
+                c.add(e);
+            }
+
+            return i;
+        }
+
+        static final class Chunk
+        {
+            static final AtomicIntegerFieldUpdater<Chunk> ENQ =
+                AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "enq");
+            static final AtomicIntegerFieldUpdater<Chunk> DEQ =
+                AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "deq");
+            static final AtomicReferenceFieldUpdater<Chunk, Chunk> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Chunk.class, Chunk.class, "next");
+
+            final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<Object>(CHUNK_SIZE);
+            volatile int enq;
+            volatile int deq;
+            volatile Chunk next;
+        }
+    }
+
+    /**
+     * Unbounded queue striped over several {@link ConcurrentLinkedQueue} lanes
+     * with one shared park queue. The lane of a thread is derived from its id;
+     * consumers poll their own lane first and then the others in order, so the
+     * no-lost-wakeup re-check covers every lane.
+     */
+    protected static class Laned<E> extends Impl<E>
+    {
+        protected final ParkQueue _parkq;
+        private final ConcurrentLinkedQueue<E>[] _lanes;
+        private final int _mask;
+        // striped element count, null unless size() should not traverse the lanes
+        private final LongAdder _count;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected Laned(Builder<?> builder)
+        {
+            super(builder);
+
+            int lanes = Integer.highestOneBit(builder.lanes);
+
+            if (lanes < builder.lanes)
+            {
+                lanes <<= 1;
+            }
+
+            _parkq = new ParkQueue(builder, _stats);
+            _lanes = new ConcurrentLinkedQueue[lanes];
+            _mask = lanes - 1;
+            _count = builder.countSize ? new LongAdder() : null;
+
+            for (int i = 0; i < lanes; i++)
+            {
+                _lanes[i] = new ConcurrentLinkedQueue<E>();
+            }
+        }
+
+        /**
+         * Returns the index of the current thread's lane.
+         */
+        private int lane()
+        {
+            long id = Thread.currentThread().getId();
+            int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+            return (h >>> 16) & _mask;
+        }
+
+        /**
+         * Polls the current thread's lane, then steals from the others.
+         */
+        @Override
+        protected final E dequeue()
+        {
+            final int home = lane();
+
+            for (int i = 0; i <= _mask; i++)
+            {
+                E e = _lanes[(home + i) & _mask].poll();
+
+                if (e != null)
+                {
+                    removed(1);
+                    return e;
+                }
+            }
+
+            return null;
+        }
+
+        private void removed(int n)
+        {
+            if (_count != null)
+            {
+                _count.add(-n);
+            }
+        }
+
+        @Override
+        protected ParkQueue consumerParkQueue()
+        {
+            return _parkq;
+        }
+
+        @Override
+        public long skippedMarkers()
+        {
+            return _parkq.skipped();
+        }
+
+        /**
+         * Iterates over one lane after the other; removal goes through
+         * {@link ConcurrentLinkedQueue#remove(Object)} of the lane, i.e. removes
+         * the first equal element there, and is only accounted for if it did.
+         */
+        @Override
+        public Iterator<E> iterator()
+        {
+            return new Iterator<E>()
+            {
+                private int _lane;
+                private Iterator<E> _it = _lanes[0].iterator();
+                private E _last;
+                private ConcurrentLinkedQueue<E> _lastLane;
+
+                public boolean hasNext()
+                {
+                    while (!_it.hasNext())
+                    {
+                        if (_lane == _mask)
+                        {
+                            return false;
+                        }
+
+                        _it = _lanes[++_lane].iterator();
+                    }
+
+                    return true;
+                }
+
+                public E next()
+                {
+                    if (!hasNext())
+                    {
+                        throw new NoSuchElementException();
+                    }
+
+                    _lastLane = _lanes[_lane];
+                    return _last = _it.next();
+                }
+
+                public void remove()
+                {
+                    if (_last == null)
+                    {
+                        throw new IllegalStateException();
+                    }
+
+                    if (_lastLane.remove(_last))
+                    {
+                        removed(1);
+                    }
+
+                    _last = null;
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            long size;
+
+            if (_count == null)
+            {
+                size = 0;
+
+                for (ConcurrentLinkedQueue<E> lane : _lanes)
+                {
+                    size += lane.size();
+                }
+            }
+            else
+            {
+                size = _count.sum();
+            }
+
+            return size < 0 ? 0 : (size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)size);
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            for (ConcurrentLinkedQueue<E> lane : _lanes)
+            {
+                if (!lane.isEmpty())
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            for (ConcurrentLinkedQueue<E> lane : _lanes)
+            {
+                if (lane.remove(o))
+                {
+                    removed(1);
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        public boolean offer(E e)
+        {
+            _lanes[lane()].offer(e);
+
+            if (_count != null)
+            {
+                _count.increment();
+            }
+
+            _parkq.unparkOne();
+            return true;
+        }
+
+        @Override
+        public int offerAll(Collection<? extends E> c)
+        {
+            final int n = c.size();
 
-            for (;;)
+            if (!_lanes[lane()].addAll(c))
             {
-                E e = _q.poll();
-
-                if (e != null)
-                {
-                    return e;
-                }
+                return 0;
+            }
 
-                final long duration = t1 - System.nanoTime();
+            if (_count != null)
+            {
+                _count.add(n);
+            }
 
-                if (duration <= 0)
-                {
-                    return null; // time out
-                }
+            _parkq.unpark(n);
+            return n;
+        }
 
-                ThreadMarker m = new ThreadMarker(Thread.currentThread());
+        @Override
+        public void putAll(Collection<? extends E> c) throws InterruptedException
+        {
+            offerAll(c);
+        }
 
-                if (Thread.interrupted())
-                {
-                    // avoid the parkq.offer(m) if already interrupted
-                    throw new InterruptedException();
-                }
+        @Override
+        public E peek()
+        {
+            final int home = lane();
 
-                _parkq.offer(m);
-                // check again in case there is data race
-                e = _q.poll();
+            for (int i = 0; i <= _mask; i++)
+            {
+                E e = _lanes[(home + i) & _mask].peek();
 
                 if (e != null)
                 {
-                    // data race indeed
-                    m.parked = false;
                     return e;
                 }
+            }
 
-                LockSupport.parkNanos(duration);
-                m.parked = false;
+            return null;
+        }
 
-                if (Thread.interrupted())
-                {
-                    throw new InterruptedException();
-                }
-            }
+        @Override
+        public E poll()
+        {
+            return dequeue();
         }
 
         @Override
@@ -313,181 +2959,325 @@ public class ConcurrentLinkedBlockingQueue<E> extends AbstractQueue<E>
         @Override
         public int drainTo(Collection<? super E> c)
         {
-            int i = 0;
-            E e;
-
-            for (; (e = _q.poll()) != null; i++)
-            {
-                c.add(e);
-            }
-
-            return i;
+            return drainTo(c, Integer.MAX_VALUE);
         }
 
+        /**
+         * Drains the current thread's lane first, then the others in order, and
+         * accounts for all removed elements at once.
+         */
         @Override
         public int drainTo(Collection<? super E> c, int maxElements)
         {
+            final int home = lane();
             int i = 0;
-            E e;
 
-            for (; i < maxElements && (e = _q.poll()) != null; i++)
+            try
             {
-                c.add(e);
+                for (int l = 0; l <= _mask && i < maxElements; l++)
+                {
+                    ConcurrentLinkedQueue<E> lane = _lanes[(home + l) & _mask];
+                    E e;
+
+                    while (i < maxElements && (e = lane.poll()) != null)
+                    {
+                        // count first, the element is gone even if c rejects it
+                        i++;
+                        c.add(e);
+                    }
+                }
+            }
+            finally
+            {
+                if (i > 0)
+                {
+                    removed(i);
+                }
             }
 
             return i;
         }
-
     }
 
-    protected static class Bounded<E> extends Unbounded<E>
+    /**
+     * Unbounded linked queue for a single consumer thread. The consumer owns the
+     * head and needs no CAS; producers link nodes in through {@link #link} and a
+     * waiting consumer parks in the {@link #_waiter} slot, which producers clear
+     * with a single swap before unparking it.
+     */
+    protected abstract static class SingleConsumer<E> extends Impl<E>
     {
-        private final AtomicInteger _capacity;
-        private final ConcurrentLinkedQueue<ThreadMarker> _putparkq;
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<SingleConsumer, Node> HEAD =
+            AtomicReferenceFieldUpdater.newUpdater(SingleConsumer.class, Node.class, "_head");
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<SingleConsumer, Thread> WAITER =
+            AtomicReferenceFieldUpdater.newUpdater(SingleConsumer.class, Thread.class, "_waiter");
+
+        // stub node whose successor holds the next element, written by the consumer only
+        private volatile Node<E> _head;
+        private volatile Thread _waiter;
+
+        protected SingleConsumer(Builder<?> builder, Node<E> stub)
+        {
+            super(builder);
+            _head = stub;
+        }
 
-        public Bounded(int capacity)
+        /**
+         * Appends the given chain of nodes; called by producers.
+         */
+        protected abstract void link(Node<E> first, Node<E> last);
+
+        /**
+         * Returns whether a producer has claimed the position after the given
+         * node but not yet linked its successor.
+         */
+        protected abstract boolean linking(Node<E> node);
+
+        /**
+         * Unparks the waiting consumer, if any; producers must call this after
+         * a full fence following their link, which pairs with the consumer
+         * publishing itself in the slot before its re-check.
+         */
+        protected final void signal()
         {
-            if (capacity <= 0)
+            if (_waiter != null)
             {
-                throw new IllegalArgumentException("capacity must be > 0");
-            }
+                Thread waiter = WAITER.getAndSet(this, null);
 
-            _capacity = new AtomicInteger(capacity);
-            _putparkq = new ConcurrentLinkedQueue<ThreadMarker>();
+                if (waiter != null)
+                {
+                    LockSupport.unpark(waiter);
+
+                    if (_stats != null)
+                    {
+                        _stats.unparked();
+                    }
+                }
+            }
         }
 
-        public Bounded(int capacity, Collection<? extends E> c)
+        /**
+         * Clears the waiter slot after the re-check found an element.
+         */
+        private void recheckWon()
         {
-            this(capacity);
+            _waiter = null;
 
-            if (capacity < c.size())
+            if (_stats != null)
             {
-                throw new IllegalArgumentException("capacity must be > collection");
+                _stats.recheckWon();
             }
+        }
 
-            for (E e : c)
+        /**
+         * Parks the consumer, which has published itself in the waiter slot, for
+         * at most the given time if timed, then clears the slot.
+         */
+        private void park(boolean timed, long nanos)
+        {
+            if (_stats == null)
             {
-                add(e);
+                if (timed)
+                {
+                    LockSupport.parkNanos(this, nanos);
+                }
+                else
+                {
+                    LockSupport.park(this);
+                }
             }
+            else
+            {
+                final long t0 = System.nanoTime();
+
+                if (timed)
+                {
+                    LockSupport.parkNanos(this, nanos);
+                }
+                else
+                {
+                    LockSupport.park(this);
+                }
+
+                final long parked = System.nanoTime() - t0;
+                // still in the slot: no producer signalled
+                _stats.parked(parked, (!timed || parked < nanos) && _waiter == Thread.currentThread()
+                                      && !Thread.currentThread().isInterrupted());
+            }
+
+            _waiter = null;
         }
 
         @Override
         public boolean offer(E e)
         {
-            if (tryDecrementCapacity())
+            if (e == null)
             {
-                return super.offer(e);
+                throw new NullPointerException();
             }
 
-            return false;
+            Node<E> node = new Node<E>(e);
+            link(node, node);
+            signal();
+            return true;
         }
 
-        private boolean tryDecrementCapacity()
+        @Override
+        public int offerAll(Collection<? extends E> c)
         {
-            int capacity;
+            Node<E> first = null;
+            Node<E> last = null;
+            int n = 0;
 
-            do
+            // build a private chain first, then link it in one go; a null
+            // element throws before anything is linked
+            for (E e : c)
             {
-                capacity = _capacity.get();
+                if (e == null)
+                {
+                    throw new NullPointerException();
+                }
 
-                if (capacity == 0)
+                Node<E> node = new Node<E>(e);
+
+                if (first == null)
                 {
-                    return false;
+                    first = node;
+                }
+                else
+                {
+                    last.next = node;
                 }
+
+                last = node;
+                n++;
             }
-            while (!_capacity.compareAndSet(capacity, capacity - 1));
 
-            return true;
+            if (first != null)
+            {
+                link(first, last);
+                signal();
+            }
+
+            return n;
         }
 
         @Override
-        public E poll()
+        public void put(E e) throws InterruptedException
         {
-            E e = super.poll();
-
-            if (e != null)
-            {
-                _capacity.incrementAndGet();
-                unparkIfAny();
-            }
+            offer(e);
+        }
 
-            return e;
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return offer(e);
         }
 
         @Override
-        public E take() throws InterruptedException
+        public void putAll(Collection<? extends E> c) throws InterruptedException
         {
-            E e = super.take();
-            _capacity.incrementAndGet();
-            unparkIfAny();
-            return e;
+            offerAll(c);
         }
 
-        private void unparkIfAny()
+        @Override
+        public E peek()
         {
-            for (;;)
-            {
-                ThreadMarker marker = _putparkq.poll();
+            Node<E> next = next(_head);
+            return next == null ? null : next.item;
+        }
 
-                if (marker == null)
-                {
-                    return;
-                }
+        /**
+         * Returns the successor of the given node, waiting for a producer that is
+         * still linking it in.
+         */
+        private Node<E> next(Node<E> node)
+        {
+            Node<E> next = node.next;
 
-                if (marker.parked)
+            if (next == null && linking(node))
+            {
+                while ((next = node.next) == null)
                 {
-                    LockSupport.unpark(marker.thread);
-                    return;
+                    Thread.onSpinWait();
                 }
             }
+
+            return next;
         }
 
         @Override
-        public E poll(final long timeout, final TimeUnit unit) throws InterruptedException
+        protected final E dequeue()
         {
-            E e = super.poll(timeout, unit);
+            Node<E> head = _head;
+            Node<E> next = next(head);
 
-            if (e != null)
+            if (next == null)
             {
-                _capacity.incrementAndGet();
-                unparkIfAny();
+                return null;
             }
 
+            E e = next.item;
+            next.item = null;
+            HEAD.lazySet(this, next);
             return e;
         }
 
         @Override
-        public void put(E e) throws InterruptedException
+        public E poll()
+        {
+            return dequeue();
+        }
+
+        /**
+         * Waits in {@link #_waiter} rather than a park queue.
+         */
+        @Override
+        public E take() throws InterruptedException
         {
+            int attempt = 0;
+
             for (;;)
             {
-                if (tryDecrementCapacity())
+                E e = poll();
+
+                if (e != null)
                 {
-                    super.put(e);
-                    return;
+                    return e;
                 }
 
-                ThreadMarker m = new ThreadMarker(Thread.currentThread());
+                final boolean idled = _waitStrategy.idle(attempt);
+                attempt = WaitStrategy.next(attempt);
+
+                if (idled)
+                {
+                    if (Thread.interrupted())
+                    {
+                        throw new InterruptedException();
+                    }
+
+                    continue;
+                }
 
                 if (Thread.interrupted())
                 {
-                    // avoid the putparkq.offer(m) if already interrupted
                     throw new InterruptedException();
                 }
 
-                _putparkq.offer(m);
-
+                _waiter = Thread.currentThread();
                 // check again in case there is data race
-                if (tryDecrementCapacity())
+                e = poll();
+
+                if (e != null)
                 {
                     // data race indeed
-                    m.parked = false;
-                    super.put(e);
-                    return;
+                    recheckWon();
+                    return e;
                 }
 
-                LockSupport.park();
-                m.parked = false;
+                park(false, 0L);
 
                 if (Thread.interrupted())
                 {
@@ -497,50 +3287,63 @@ public class ConcurrentLinkedBlockingQueue<E> extends AbstractQueue<E>
         }
 
         @Override
-        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException
+        public E poll(final long timeout, final TimeUnit unit) throws InterruptedException
         {
             if (timeout < 0)
             {
                 // treat negative timeout same as to wait forever
-                put(e);
-                return true;
+                return take();
             }
 
             final long t1 = System.nanoTime() + unit.toNanos(timeout);
+            int attempt = 0;
 
             for (;;)
             {
-                if (tryDecrementCapacity())
+                E e = poll();
+
+                if (e != null)
                 {
-                    return super.offer(e, timeout, unit);
+                    return e;
                 }
 
                 final long duration = t1 - System.nanoTime();
 
                 if (duration <= 0)
                 {
-                    return false; // time out
+                    return null; // time out
                 }
 
-                ThreadMarker m = new ThreadMarker(Thread.currentThread());
+                final boolean idled = _waitStrategy.idle(attempt);
+                attempt = WaitStrategy.next(attempt);
+
+                if (idled)
+                {
+                    if (Thread.interrupted())
+                    {
+                        throw new InterruptedException();
+                    }
+
+                    continue;
+                }
 
                 if (Thread.interrupted())
                 {
-                    // avoid the putparkq.offer(m) if already interrupted
                     throw new InterruptedException();
                 }
 
-                _putparkq.offer(m);
+                _waiter = Thread.currentThread();
                 // check again in case there is data race
-                if (tryDecrementCapacity())
-                { // data race indeed
-                    m.parked = false;
-                    super.offer(e);
-                    return true;
+                e = poll();
+
+                if (e != null)
+                {
+                    // data race indeed
+                    recheckWon();
+                    return e;
                 }
 
-                LockSupport.parkNanos(duration);
-                m.parked = false;
+                park(true, duration);
 
                 if (Thread.interrupted())
                 {
@@ -549,24 +3352,83 @@ public class ConcurrentLinkedBlockingQueue<E> extends AbstractQueue<E>
             }
         }
 
+        /**
+         * Weakly consistent; removal is not supported.
+         */
         @Override
-        public int remainingCapacity()
+        public Iterator<E> iterator()
         {
-            return _capacity.get();
+            return new Iterator<E>()
+            {
+                private Node<E> _node = _head;
+                private E _next = advance();
+
+                private E advance()
+                {
+                    // skip nodes the consumer has emptied meanwhile
+                    while ((_node = _node.next) != null)
+                    {
+                        E e = _node.item;
+
+                        if (e != null)
+                        {
+                            return e;
+                        }
+                    }
+
+                    return null;
+                }
+
+                public boolean hasNext()
+                {
+                    return _next != null;
+                }
+
+                public E next()
+                {
+                    if (_next == null)
+                    {
+                        throw new NoSuchElementException();
+                    }
+
+                    E e = _next;
+                    _next = _node == null ? null : advance();
+                    return e;
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
 
         @Override
-        public int drainTo(Collection<? super E> c)
+        public int size()
         {
-            int i = 0;
-            E e;
+            int size = 0;
 
-            for (; (e = poll()) != null; i++)
+            for (Node<E> node = _head.next; node != null && size < Integer.MAX_VALUE; node = node.next)
             {
-                c.add(e);
+                if (node.item != null)
+                {
+                    size++;
+                }
             }
 
-            return i;
+            return size;
+        }
+
+        @Override
+        public int remainingCapacity()
+        {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c)
+        {
+            return drainTo(c, Integer.MAX_VALUE);
         }
 
         @Override
@@ -583,6 +3445,90 @@ public class ConcurrentLinkedBlockingQueue<E> extends AbstractQueue<E>
             return i;
         }
 
+        protected static final class Node<E>
+        {
+            @SuppressWarnings("rawtypes")
+            static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+            E item;
+            volatile Node<E> next;
+
+            Node(E item)
+            {
+                this.item = item;
+            }
+        }
+    }
+
+    /**
+     * Many producers: each claims the tail with one atomic swap, which is also
+     * the full fence {@link SingleConsumer#signal()} needs, then links its
+     * predecessor with an ordered store.
+     */
+    protected static class Mpsc<E> extends SingleConsumer<E>
+    {
+        private final AtomicReference<Node<E>> _tail;
+
+        protected Mpsc(Builder<?> builder)
+        {
+            this(builder, new Node<E>(null));
+        }
+
+        private Mpsc(Builder<?> builder, Node<E> stub)
+        {
+            super(builder, stub);
+            _tail = new MpmcRing.PaddedAtomicReference<Node<E>>(stub);
+        }
+
+        @Override
+        protected void link(Node<E> first, Node<E> last)
+        {
+            Node<E> prev = _tail.getAndSet(last);
+            Node.NEXT.lazySet(prev, first);
+        }
+
+        @Override
+        protected boolean linking(Node<E> node)
+        {
+            return _tail.get() != node;
+        }
+    }
+
+    /**
+     * A single producer: links with an ordered store and keeps the tail in a
+     * plain field. The only fence is the one that keeps it from missing a
+     * consumer that is about to park.
+     */
+    protected static class Spsc<E> extends SingleConsumer<E>
+    {
+        // owned by the producer
+        private Node<E> _tail;
+
+        protected Spsc(Builder<?> builder)
+        {
+            this(builder, new Node<E>(null));
+        }
+
+        private Spsc(Builder<?> builder, Node<E> stub)
+        {
+            super(builder, stub);
+            _tail = stub;
+        }
+
+        @Override
+        protected void link(Node<E> first, Node<E> last)
+        {
+            Node.NEXT.lazySet(_tail, first);
+            _tail = last;
+            VarHandle.fullFence();
+        }
+
+        @Override
+        protected boolean linking(Node<E> node)
+        {
+            return false;
+        }
     }
 
 }
@@ -0,0 +1,375 @@
+package h2o.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size executor whose workers take tasks from a
+ * {@link ConcurrentLinkedBlockingQueue} in batches, for many short tasks where a
+ * {@link java.util.concurrent.ThreadPoolExecutor} spends a good share of its
+ * time in its work queue.
+ * <p>
+ * All workers are started up front and never time out, so submission is a
+ * plain offer: no pool growth relying on a failed offer, and no timed poll per
+ * idle worker. A worker takes up to {@code batchSize} tasks at once and runs
+ * them in order; idle workers park on the queue with reused markers. The queue
+ * counts its elements in striped counters, so {@link #getQueueSize()} does not
+ * traverse it.
+ * <p>
+ * Batching trades fairness for throughput: tasks one worker has taken wait for
+ * the tasks before them in its batch even if other workers are idle, so a batch
+ * size of one suits long or blocking tasks.
+ * <p>
+ * Neither {@link #shutdown()} nor {@link #shutdownNow()} waits: they interrupt
+ * the idle workers, and once shut down, workers no longer wait for tasks but
+ * exit as soon as they find the queue empty. {@link #shutdownNow()} returns the
+ * queued tasks; tasks a worker has already taken as part of a batch still run,
+ * with the worker interrupted.
+ * <p>
+ * A task that throws a {@link RuntimeException} is reported to the worker's
+ * uncaught exception handler and the worker carries on; one that throws an
+ * {@link Error} ends the worker. It is replaced unless the executor is shutting
+ * down, and always if there are tasks left in its batch, which the replacement
+ * runs first.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class ConcurrentLinkedExecutor extends AbstractExecutorService
+{
+    private static final int RUNNING = 0;
+    private static final int SHUTDOWN = 1;
+    private static final int STOP = 2;
+
+    private final ConcurrentLinkedBlockingQueue<Runnable> _q;
+    private final ThreadFactory _threadFactory;
+    private final int _batchSize;
+    // a dying worker stores its replacement, which shutdown() has to see
+    private final AtomicReferenceArray<Worker> _workers;
+    private final AtomicInteger _state = new AtomicInteger(RUNNING);
+    private final CountDownLatch _terminated;
+
+    public ConcurrentLinkedExecutor(int nThreads)
+    {
+        this(nThreads, 16, 0, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Creates an executor with the given number of workers, each taking up to
+     * the given number of tasks at a time; a positive capacity bounds the queue
+     * and makes submissions to a full queue fail with a
+     * {@link RejectedExecutionException}.
+     */
+    public ConcurrentLinkedExecutor(int nThreads, int batchSize, int capacity, ThreadFactory threadFactory)
+    {
+        if (nThreads <= 0 || batchSize <= 0 || capacity < 0)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        if (threadFactory == null)
+        {
+            throw new NullPointerException();
+        }
+
+        ConcurrentLinkedBlockingQueue.Builder<Runnable> builder =
+            ConcurrentLinkedBlockingQueue.<Runnable>builder().reuseMarkers(true);
+        // a bounded queue counts its size anyway
+        _q = (capacity == 0 ? builder.countSize(true) : builder.capacity(capacity)).build();
+        _threadFactory = threadFactory;
+        _batchSize = batchSize;
+        _workers = new AtomicReferenceArray<Worker>(nThreads);
+        _terminated = new CountDownLatch(nThreads);
+
+        for (int i = 0; i < nThreads; i++)
+        {
+            startWorker(i, new ArrayList<Runnable>(batchSize));
+        }
+    }
+
+    /**
+     * Starts the worker of the given index, which first runs the given tasks.
+     */
+    private void startWorker(int i, List<Runnable> batch)
+    {
+        Worker w = new Worker(i, batch);
+        Thread t = _threadFactory.newThread(w);
+
+        if (t == null)
+        {
+            throw new IllegalStateException("thread factory returned null");
+        }
+
+        w._thread = t;
+        _workers.set(i, w);
+        t.start();
+    }
+
+    public void execute(Runnable command)
+    {
+        if (command == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if (_state.get() != RUNNING)
+        {
+            throw new RejectedExecutionException("executor is shut down");
+        }
+
+        if (!_q.offer(command))
+        {
+            throw new RejectedExecutionException("work queue is full");
+        }
+
+        // the workers may have found the queue empty and exited meanwhile;
+        // unless one of them got hold of the task already it would never run
+        if (_state.get() != RUNNING && _q.remove(command))
+        {
+            throw new RejectedExecutionException("executor is shut down");
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to be taken by a worker; exact only
+     * while no tasks are submitted or taken.
+     */
+    public int getQueueSize()
+    {
+        return _q.size();
+    }
+
+    /**
+     * Returns the number of workers.
+     */
+    public int getPoolSize()
+    {
+        return _workers.length();
+    }
+
+    public void shutdown()
+    {
+        if (_state.compareAndSet(RUNNING, SHUTDOWN))
+        {
+            for (int i = 0; i < _workers.length(); i++)
+            {
+                // a replacement stored after we looked sees the state itself
+                _workers.get(i).interruptIfIdle();
+            }
+        }
+    }
+
+    public List<Runnable> shutdownNow()
+    {
+        List<Runnable> pending = new ArrayList<Runnable>();
+
+        if (_state.getAndSet(STOP) == STOP)
+        {
+            return pending;
+        }
+
+        _q.drainTo(pending);
+
+        for (int i = 0; i < _workers.length(); i++)
+        {
+            // a replacement stored after we looked sees STOP itself
+            _workers.get(i)._thread.interrupt();
+        }
+
+        return pending;
+    }
+
+    public boolean isShutdown()
+    {
+        return _state.get() != RUNNING;
+    }
+
+    public boolean isTerminated()
+    {
+        return _terminated.getCount() == 0;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return _terminated.await(timeout, unit);
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[workers=" + _workers.length() + ", queued=" + getQueueSize()
+               + (isShutdown() ? ", shut down]" : "]");
+    }
+
+    private final class Worker implements Runnable
+    {
+        private static final int BUSY = 0;
+        private static final int IDLE = 1;
+        private static final int WAKING = 2;
+
+        private final int _index;
+        // tasks taken but not yet run
+        private final List<Runnable> _batch;
+        // IDLE while waiting for tasks, WAKING while shutdown() interrupts it
+        private final AtomicInteger _mode = new AtomicInteger(BUSY);
+        // set before the worker is published in _workers
+        private Thread _thread;
+
+        Worker(int index, List<Runnable> batch)
+        {
+            _index = index;
+            _batch = batch;
+        }
+
+        /**
+         * Interrupts this worker if it waits for tasks, so that it notices the
+         * shutdown; a worker running tasks is left alone.
+         */
+        void interruptIfIdle()
+        {
+            if (_mode.compareAndSet(IDLE, WAKING))
+            {
+                try
+                {
+                    _thread.interrupt();
+                }
+                finally
+                {
+                    _mode.set(IDLE);
+                }
+            }
+        }
+
+        public void run()
+        {
+            boolean abrupt = true;
+
+            try
+            {
+                for (;;)
+                {
+                    if (_batch.isEmpty() && !takeBatch())
+                    {
+                        break;
+                    }
+
+                    runBatch();
+                }
+
+                abrupt = false;
+            }
+            finally
+            {
+                if (abrupt && (_state.get() == RUNNING || !_batch.isEmpty()))
+                {
+                    startWorker(_index, _batch);
+                }
+                else
+                {
+                    _terminated.countDown();
+                }
+            }
+        }
+
+        /**
+         * Takes the next batch, waiting for it while the executor runs; returns
+         * false once it is shut down and the queue is empty.
+         */
+        private boolean takeBatch()
+        {
+            while (_state.get() == RUNNING)
+            {
+                _mode.set(IDLE);
+
+                // shutdown() changes the state before it looks for idle workers
+                if (_state.get() != RUNNING)
+                {
+                    becomeBusy();
+                    break;
+                }
+
+                try
+                {
+                    _q.takeBatch(_batch, _batchSize);
+                }
+                catch (InterruptedException e)
+                {
+                    // woken up by shutdown() or shutdownNow()
+                }
+
+                becomeBusy();
+
+                if (!_batch.isEmpty())
+                {
+                    return true;
+                }
+            }
+
+            return _q.drainTo(_batch, _batchSize) > 0;
+        }
+
+        /**
+         * Ends an idle spell, waiting out an interrupt being delivered by
+         * shutdown(); that interrupt only meant to wake us up, so unless the
+         * executor is stopping it is cleared, as ThreadPoolExecutor does.
+         */
+        private void becomeBusy()
+        {
+            while (!_mode.compareAndSet(IDLE, BUSY))
+            {
+                Thread.yield();
+            }
+
+            if (_state.get() != STOP)
+            {
+                Thread.interrupted();
+            }
+        }
+
+        /**
+         * Runs the tasks of the current batch in order; an Error leaves the
+         * tasks after the failed one in the batch for the replacement.
+         */
+        private void runBatch()
+        {
+            final int n = _batch.size();
+            int i = 0;
+
+            try
+            {
+                while (i < n)
+                {
+                    Runnable task = _batch.get(i++);
+
+                    // like ThreadPoolExecutor, make sure tasks see shutdownNow()
+                    if (_state.get() == STOP && !Thread.currentThread().isInterrupted())
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        Thread t = Thread.currentThread();
+                        t.getUncaughtExceptionHandler().uncaughtException(t, e);
+                    }
+                }
+            }
+            finally
+            {
+                _batch.subList(0, i).clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package h2o.util.concurrent;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TransferQueue;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An unbounded {@link ConcurrentLinkedBlockingQueue} that is also a
+ * {@link TransferQueue}. A producer that finds the queue empty and a consumer
+ * parked hands its element straight into that consumer's marker instead of
+ * going through the queue, so the woken consumer does not have to poll it back
+ * out.
+ * <p>
+ * An element that is being transferred while no consumer waits is kept aside
+ * until a consumer takes it; consumers take queued elements before such ones.
+ * Iteration and {@link #remove(Object)} only see queued elements.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class ConcurrentLinkedTransferQueue<E> extends ConcurrentLinkedBlockingQueue<E>
+    implements TransferQueue<E>
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Transferring<E> _transferring;
+
+    public ConcurrentLinkedTransferQueue()
+    {
+        this(new Transferring<E>(ConcurrentLinkedBlockingQueue.<E>builder()));
+    }
+
+    public ConcurrentLinkedTransferQueue(Collection<? extends E> c)
+    {
+        this();
+        addAll(c);
+    }
+
+    protected ConcurrentLinkedTransferQueue(Transferring<E> impl)
+    {
+        super(impl);
+        _transferring = impl;
+    }
+
+    public boolean tryTransfer(E e)
+    {
+        return _transferring.tryTransfer(e);
+    }
+
+    public void transfer(E e) throws InterruptedException
+    {
+        _transferring.transfer(e);
+    }
+
+    public boolean tryTransfer(E e, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return _transferring.tryTransfer(e, timeout, unit);
+    }
+
+    public boolean hasWaitingConsumer()
+    {
+        return _transferring.getWaitingConsumerCount() > 0;
+    }
+
+    public int getWaitingConsumerCount()
+    {
+        return _transferring.getWaitingConsumerCount();
+    }
+
+    /**
+     * Unbounded queue whose waiting consumers accept elements handed to their
+     * markers, with a side queue of elements producers are transferring.
+     */
+    protected static class Transferring<E> extends ConcurrentLinkedBlockingQueue.Unbounded<E>
+    {
+        private final ConcurrentLinkedQueue<Transfer<E>> _transfers = new ConcurrentLinkedQueue<Transfer<E>>();
+
+        protected Transferring(ConcurrentLinkedBlockingQueue.Builder<?> builder)
+        {
+            super(builder);
+        }
+
+        @Override
+        public boolean offer(E e)
+        {
+            if (e == null)
+            {
+                throw new NullPointerException();
+            }
+
+            // only bypass the queue while it is empty so as to keep FIFO order
+            if (_q.isEmpty() && _parkq.handoff(e))
+            {
+                return true;
+            }
+
+            return super.offer(e);
+        }
+
+        public boolean tryTransfer(E e)
+        {
+            if (e == null)
+            {
+                throw new NullPointerException();
+            }
+
+            return _parkq.handoff(e);
+        }
+
+        public void transfer(E e) throws InterruptedException
+        {
+            if (!tryTransfer(e))
+            {
+                awaitMatch(e, false, 0L);
+            }
+        }
+
+        public boolean tryTransfer(E e, long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return tryTransfer(e) || awaitMatch(e, true, System.nanoTime() + unit.toNanos(timeout));
+        }
+
+        public int getWaitingConsumerCount()
+        {
+            return _parkq.waiters();
+        }
+
+        /**
+         * Puts the given element aside until a consumer takes it, or until the
+         * given deadline if timed; returns whether it was taken.
+         */
+        private boolean awaitMatch(E e, boolean timed, long deadline) throws InterruptedException
+        {
+            Transfer<E> t = new Transfer<E>(e);
+            _transfers.offer(t);
+            // a consumer may have parked since the handoff attempt
+            _parkq.unparkOne();
+
+            for (;;)
+            {
+                if (t.item == null)
+                {
+                    return true;
+                }
+
+                if (Thread.interrupted())
+                {
+                    if (cancel(t, e))
+                    {
+                        throw new InterruptedException();
+                    }
+
+                    // taken meanwhile; keep the interrupt for later
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+
+                if (timed)
+                {
+                    final long duration = deadline - System.nanoTime();
+
+                    if (duration <= 0)
+                    {
+                        return !cancel(t, e);
+                    }
+
+                    LockSupport.parkNanos(this, duration);
+                }
+                else
+                {
+                    LockSupport.park(this);
+                }
+            }
+        }
+
+        private boolean cancel(Transfer<E> t, E e)
+        {
+            if (Transfer.ITEM.compareAndSet(t, e, null))
+            {
+                _transfers.remove(t);
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Takes the oldest element being transferred and releases its producer.
+         */
+        private E pollTransfer()
+        {
+            Transfer<E> t;
+
+            while ((t = _transfers.poll()) != null)
+            {
+                E e = t.item;
+
+                if (e != null && Transfer.ITEM.compareAndSet(t, e, null))
+                {
+                    LockSupport.unpark(t.thread);
+                    return e;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Takes from the queue, then from the producers transferring.
+         */
+        @Override
+        protected E dequeue()
+        {
+            E e = super.dequeue();
+            return e != null ? e : pollTransfer();
+        }
+
+        @Override
+        public E peek()
+        {
+            E e = _q.peek();
+
+            if (e == null)
+            {
+                for (Transfer<E> t : _transfers)
+                {
+                    if ((e = t.item) != null)
+                    {
+                        break;
+                    }
+                }
+            }
+
+            return e;
+        }
+
+        @Override
+        public int size()
+        {
+            int size = super.size();
+
+            for (Transfer<E> t : _transfers)
+            {
+                if (t.item != null && size < Integer.MAX_VALUE)
+                {
+                    size++;
+                }
+            }
+
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return _q.isEmpty() && _transfers.isEmpty();
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c, int maxElements)
+        {
+            int n = super.drainTo(c, maxElements);
+            E e;
+
+            while (n < maxElements && (e = pollTransfer()) != null)
+            {
+                n++;
+                c.add(e);
+            }
+
+            return n;
+        }
+
+        /**
+         * An element put aside by a transferring producer; a consumer takes it by
+         * clearing the item, the producer withdraws it the same way.
+         */
+        static final class Transfer<E>
+        {
+            @SuppressWarnings("rawtypes")
+            static final AtomicReferenceFieldUpdater<Transfer, Object> ITEM =
+                AtomicReferenceFieldUpdater.newUpdater(Transfer.class, Object.class, "item");
+
+            final Thread thread = Thread.currentThread();
+            volatile E item;
+
+            Transfer(E item)
+            {
+                this.item = item;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package h2o.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An unbounded concurrent blocking queue of {@code int} values that stores them
+ * in chunks of primitive arrays instead of boxing each one, with the same
+ * park/unpark handoff as {@link ConcurrentLinkedBlockingQueue}. Values are taken
+ * in FIFO order per producer.
+ * <p>
+ * Since there is no null to signal an empty queue, the non-blocking and timed
+ * polls return a caller-supplied value instead.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class IntConcurrentLinkedBlockingQueue extends ChunkedPrimitiveQueue
+{
+    public IntConcurrentLinkedBlockingQueue()
+    {
+        this(false, WaitStrategy.PARK);
+    }
+
+    /**
+     * Creates a queue whose consumers optionally reuse their park markers (see
+     * {@link ConcurrentLinkedBlockingQueue.Builder#reuseMarkers(boolean)}) and
+     * idle with the given wait strategy before parking.
+     */
+    public IntConcurrentLinkedBlockingQueue(boolean reuseMarkers, WaitStrategy waitStrategy)
+    {
+        super(reuseMarkers, waitStrategy);
+    }
+
+    @Override
+    protected Chunk newChunk()
+    {
+        return new IntChunk();
+    }
+
+    /**
+     * Inserts the given value; never fails since the queue is unbounded.
+     */
+    public boolean offer(int value)
+    {
+        enqueue(value);
+        _parkq.unparkOne();
+        return true;
+    }
+
+    /**
+     * Same as {@link #offer(int)}; never blocks.
+     */
+    public void put(int value)
+    {
+        offer(value);
+    }
+
+    /**
+     * Inserts the given range of values, then wakes up at most one waiting
+     * consumer per value; returns the number of values inserted.
+     */
+    public int offerAll(int[] values, int offset, int length)
+    {
+        checkRange(values.length, offset, length);
+
+        for (int i = offset, end = offset + length; i < end; i++)
+        {
+            enqueue(values[i]);
+        }
+
+        _parkq.unpark(length);
+        return length;
+    }
+
+    /**
+     * Removes and returns the head value, or returns the given value if the
+     * queue is empty.
+     */
+    public int pollInt(int ifEmpty)
+    {
+        return (int)pollValue(ifEmpty);
+    }
+
+    /**
+     * Removes and returns the head value, waiting if necessary until one
+     * becomes available.
+     */
+    public int takeInt() throws InterruptedException
+    {
+        return (int)takeValue();
+    }
+
+    /**
+     * Removes and returns the head value, waiting up to the given time for one
+     * to become available; returns the given value on time out.
+     */
+    public int pollInt(long timeout, TimeUnit unit, int ifEmpty) throws InterruptedException
+    {
+        return (int)pollValue(timeout, unit, ifEmpty);
+    }
+
+    /**
+     * Removes all available values into the given array, as many as fit;
+     * returns how many.
+     */
+    public int drainTo(int[] values)
+    {
+        return drainTo(values, 0, values.length);
+    }
+
+    /**
+     * Removes up to the given number of available values into the given range
+     * of the array; returns how many.
+     */
+    public int drainTo(int[] values, int offset, int length)
+    {
+        checkRange(values.length, offset, length);
+
+        int n = 0;
+
+        while (n < length)
+        {
+            IntChunk head = (IntChunk)head();
+            int i = claim(head);
+
+            if (i >= 0)
+            {
+                values[offset + n++] = head.values[i];
+            }
+            else if (i == NONE)
+            {
+                break;
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * Waits for a first value, then removes up to the given number of values
+     * into the given range of the array; returns how many.
+     */
+    public int takeBatch(int[] values, int offset, int length) throws InterruptedException
+    {
+        checkRange(values.length, offset, length);
+
+        if (length == 0)
+        {
+            return 0;
+        }
+
+        values[offset] = takeInt();
+        return 1 + drainTo(values, offset + 1, length - 1);
+    }
+
+    private static final class IntChunk extends Chunk
+    {
+        final int[] values = new int[CHUNK_SIZE];
+
+        @Override
+        long get(int i)
+        {
+            return values[i];
+        }
+
+        @Override
+        void set(int i, long value)
+        {
+            values[i] = (int)value;
+        }
+    }
+}
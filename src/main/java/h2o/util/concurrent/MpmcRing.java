@@ -0,0 +1,243 @@
+package h2o.util.concurrent;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A preallocated, bounded multi-producer/multi-consumer ring using one sequence
+ * number per slot (after Dmitry Vyukov's bounded MPMC queue). Neither
+ * {@link #offer(Object)} nor {@link #poll()} allocate, and sequence numbers make
+ * reuse of the same element instance ABA-safe.
+ * <p>
+ * The ring itself is a power of two in size; a capacity that is not is
+ * enforced by offer as a separate limit on the number of reserved slots.
+ * <p>
+ * Publication of a slot is a volatile write so that an offer followed by a
+ * volatile read elsewhere is totally ordered with a poll preceded by a CAS
+ * elsewhere; the park queues rely on this for their no-lost-wakeup re-check.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ *
+ * @param <E> the type of elements held in this ring
+ */
+final class MpmcRing<E>
+{
+    private final AtomicReferenceArray<E> _buffer;
+    private final AtomicLongArray _sequences;
+    private final int _mask;
+    private final int _capacity;
+    private final AtomicLong _head = new PaddedAtomicLong();
+    private final AtomicLong _tail = new PaddedAtomicLong();
+
+    MpmcRing(int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+
+        int size = capacity > (1 << 30) ? (1 << 30) : Integer.highestOneBit(capacity);
+
+        if (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        _buffer = new AtomicReferenceArray<E>(size);
+        _sequences = new AtomicLongArray(size);
+        _mask = size - 1;
+        _capacity = Math.min(capacity, size);
+
+        for (int i = 0; i < size; i++)
+        {
+            _sequences.set(i, i);
+        }
+    }
+
+    int capacity()
+    {
+        return _capacity;
+    }
+
+    boolean offer(E e)
+    {
+        for (;;)
+        {
+            long tail = _tail.get();
+            int i = (int)tail & _mask;
+            long dif = _sequences.get(i) - tail;
+
+            if (dif == 0)
+            {
+                if (_capacity <= _mask && tail - _head.get() >= _capacity)
+                {
+                    return false; // full short of the end of the ring
+                }
+
+                if (_tail.compareAndSet(tail, tail + 1))
+                {
+                    _buffer.lazySet(i, e);
+                    _sequences.set(i, tail + 1);
+                    return true;
+                }
+            }
+            else if (dif < 0)
+            {
+                return false; // full
+            }
+        }
+    }
+
+    E poll()
+    {
+        for (;;)
+        {
+            long head = _head.get();
+            int i = (int)head & _mask;
+            long dif = _sequences.get(i) - (head + 1);
+
+            if (dif == 0)
+            {
+                if (_head.compareAndSet(head, head + 1))
+                {
+                    E e = _buffer.get(i);
+                    _buffer.lazySet(i, null);
+                    _sequences.lazySet(i, head + _mask + 1);
+                    return e;
+                }
+            }
+            else if (dif < 0)
+            {
+                return null; // empty, or an offer still in flight
+            }
+        }
+    }
+
+    /**
+     * Returns the head element without taking it, or null if there is none.
+     */
+    E peek()
+    {
+        for (;;)
+        {
+            long head = _head.get();
+            int i = (int)head & _mask;
+            long dif = _sequences.get(i) - (head + 1);
+
+            if (dif < 0)
+            {
+                return null; // empty, or an offer still in flight
+            }
+
+            if (dif == 0)
+            {
+                E e = _buffer.get(i);
+
+                // only trust the slot if it still holds position head
+                if (e != null && _sequences.get(i) == head + 1)
+                {
+                    return e;
+                }
+            }
+        }
+    }
+
+    boolean isEmpty()
+    {
+        long head = _head.get();
+        return _sequences.get((int)head & _mask) - (head + 1) < 0;
+    }
+
+    int size()
+    {
+        long size = _tail.get() - _head.get();
+        return size < 0 ? 0 : (int)Math.min(size, capacity());
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the elements present at or after
+     * its creation; it never throws ConcurrentModificationException and does
+     * not support removal.
+     */
+    Iterator<E> iterator()
+    {
+        return new Iterator<E>()
+        {
+            private long _pos = _head.get();
+            private E _next = advance();
+
+            private E advance()
+            {
+                for (long tail = _tail.get(); _pos < tail; _pos++)
+                {
+                    int i = (int)_pos & _mask;
+                    E e = _buffer.get(i);
+
+                    // only trust the slot if it still holds position _pos
+                    if (e != null && _sequences.get(i) == _pos + 1)
+                    {
+                        _pos++;
+                        return e;
+                    }
+
+                    if (_pos < _head.get())
+                    {
+                        _pos = _head.get() - 1;
+                    }
+                }
+
+                return null;
+            }
+
+            public boolean hasNext()
+            {
+                return _next != null;
+            }
+
+            public E next()
+            {
+                if (_next == null)
+                {
+                    throw new NoSuchElementException();
+                }
+
+                E e = _next;
+                _next = advance();
+                return e;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Keeps the hot head and tail counters on cache lines of their own.
+     */
+    @SuppressWarnings("serial")
+    static final class PaddedAtomicLong extends AtomicLong
+    {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /**
+     * Keeps a hot reference on a cache line of its own.
+     */
+    @SuppressWarnings("serial")
+    static final class PaddedAtomicReference<V> extends AtomicReference<V>
+    {
+        long p1, p2, p3, p4, p5, p6, p7;
+
+        PaddedAtomicReference(V initialValue)
+        {
+            super(initialValue);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package h2o.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link Flow.Publisher} view of a {@link ConcurrentLinkedBlockingQueue}.
+ * Subscribers take elements off the queue as they request them, so several
+ * subscribers split the elements between them like competing consumers.
+ * <p>
+ * Demand is served in batches: a subscription drains as many elements as its
+ * outstanding demand allows in one go, and only waits once the queue is empty,
+ * with {@link ConcurrentLinkedBlockingQueue#takeAsync()}. The producer that
+ * ends the wait merely schedules the subscription, which then delivers that
+ * element and whatever else arrived meanwhile, up to the demand, so a burst
+ * costs one wakeup rather than one per element.
+ * <p>
+ * Each subscription signals its subscriber on the executor, one task at a
+ * time, starting with onSubscribe, so no onNext overlaps it. A queue has no
+ * end, so subscriptions never complete; they signal onError only for a
+ * non-positive request, an executor that rejects them or a subscriber that
+ * throws. Elements a subscription has already taken off the
+ * queue are still delivered after it is cancelled, and put back at the tail
+ * of the queue, room permitting, after such an error.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public final class QueuePublisher<E> implements Flow.Publisher<E>
+{
+    // elements taken off the queue at a time; more demand is served in further
+    // drains without waiting in between
+    private static final int MAX_BATCH = 256;
+
+    private final ConcurrentLinkedBlockingQueue<E> _q;
+    private final Executor _executor;
+
+    QueuePublisher(ConcurrentLinkedBlockingQueue<E> q, Executor executor)
+    {
+        _q = q;
+        _executor = executor;
+    }
+
+    public void subscribe(Flow.Subscriber<? super E> subscriber)
+    {
+        if (subscriber == null)
+        {
+            throw new NullPointerException();
+        }
+
+        new Subscription<E>(_q, _executor, subscriber).schedule();
+    }
+
+    /**
+     * Drains the queue into one subscriber. All signals come from
+     * {@link #run()}, which runs on the executor whenever {@link #_wip} goes up
+     * from zero and loops until it got back to zero; the first run signals
+     * onSubscribe.
+     */
+    private static final class Subscription<E> implements Flow.Subscription, Runnable
+    {
+        private final ConcurrentLinkedBlockingQueue<E> _q;
+        private final Executor _executor;
+        private final Flow.Subscriber<? super E> _subscriber;
+        private final AtomicLong _demand = new AtomicLong();
+        private final AtomicInteger _wip = new AtomicInteger();
+        // only touched by whoever got _wip up from zero
+        private final List<E> _batch = new ArrayList<E>();
+        private boolean _subscribed;
+        private volatile boolean _terminated;
+        private volatile boolean _cancelled;
+        private volatile Throwable _error;
+        // the wait for the next element, and that element once it arrived
+        private volatile CompletableFuture<E> _pending;
+        private volatile E _ready;
+
+        Subscription(ConcurrentLinkedBlockingQueue<E> q, Executor executor, Flow.Subscriber<? super E> subscriber)
+        {
+            _q = q;
+            _executor = executor;
+            _subscriber = subscriber;
+        }
+
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                _error = new IllegalArgumentException("non-positive request: " + n);
+                schedule();
+                return;
+            }
+
+            for (;;)
+            {
+                long demand = _demand.get();
+                long next = demand + n;
+
+                if (_demand.compareAndSet(demand, next < 0 ? Long.MAX_VALUE : next))
+                {
+                    break;
+                }
+            }
+
+            schedule();
+        }
+
+        public void cancel()
+        {
+            _cancelled = true;
+            CompletableFuture<E> pending = _pending;
+
+            if (pending != null)
+            {
+                pending.cancel(false);
+            }
+        }
+
+        private void schedule()
+        {
+            if (_wip.getAndIncrement() != 0)
+            {
+                return;
+            }
+
+            try
+            {
+                _executor.execute(this);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // nothing runs for us, and with _wip left up nothing ever will,
+                // so we may signal from here
+                if (subscribe())
+                {
+                    terminate(e);
+                }
+            }
+        }
+
+        public void run()
+        {
+            int missed = 1;
+
+            for (;;)
+            {
+                if (!_terminated && subscribe())
+                {
+                    Throwable error = _error;
+
+                    if (error != null)
+                    {
+                        terminate(error);
+                    }
+                    else
+                    {
+                        drain();
+                    }
+                }
+
+                missed = _wip.addAndGet(-missed);
+
+                if (missed == 0)
+                {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Signals onSubscribe unless done before; returns false if the
+         * subscriber threw, which terminates the subscription.
+         */
+        private boolean subscribe()
+        {
+            if (_subscribed)
+            {
+                return true;
+            }
+
+            _subscribed = true;
+
+            try
+            {
+                _subscriber.onSubscribe(this);
+            }
+            catch (Throwable t)
+            {
+                terminate(t);
+                return false;
+            }
+
+            return true;
+        }
+
+        private void drain()
+        {
+            final long demand = _demand.get();
+            long emitted = 0;
+            int next = 0;
+            E ready = _ready;
+
+            try
+            {
+                if (ready != null)
+                {
+                    // waited for while there was demand, which only we use up
+                    _ready = null;
+                    _pending = null;
+                    _subscriber.onNext(ready);
+                    emitted++;
+                }
+
+                while (emitted < demand && !_cancelled && _pending == null)
+                {
+                    _q.drainTo(_batch, (int)Math.min(demand - emitted, MAX_BATCH));
+
+                    if (_batch.isEmpty())
+                    {
+                        await();
+                        break;
+                    }
+
+                    for (next = 0; next < _batch.size();)
+                    {
+                        _subscriber.onNext(_batch.get(next++));
+                        emitted++;
+                    }
+
+                    _batch.clear();
+                }
+            }
+            catch (Throwable t)
+            {
+                // the subscriber broke the rules; hand back what it did not get
+                for (int i = next; i < _batch.size(); i++)
+                {
+                    _q.offer(_batch.get(i));
+                }
+
+                _batch.clear();
+                terminate(t);
+                return;
+            }
+
+            if (demand != Long.MAX_VALUE && emitted > 0)
+            {
+                _demand.addAndGet(-emitted);
+            }
+        }
+
+        /**
+         * Waits for the next element without a thread; its arrival schedules
+         * another run.
+         */
+        private void await()
+        {
+            CompletableFuture<E> pending = _q.takeAsync();
+            _pending = pending;
+            pending.whenComplete(new BiConsumer<E, Throwable>()
+            {
+                public void accept(E e, Throwable t)
+                {
+                    if (e == null)
+                    {
+                        return;
+                    }
+
+                    if (_terminated)
+                    {
+                        _q.offer(e);
+                        return;
+                    }
+
+                    _ready = e;
+                    schedule();
+                }
+            });
+
+            // a cancel() that came too early to see the wait
+            if (_cancelled)
+            {
+                pending.cancel(false);
+            }
+        }
+
+        private void terminate(Throwable error)
+        {
+            _terminated = true;
+            cancel();
+            E ready = _ready;
+
+            if (ready != null)
+            {
+                _ready = null;
+                _q.offer(ready);
+            }
+
+            _subscriber.onError(error);
+        }
+    }
+}
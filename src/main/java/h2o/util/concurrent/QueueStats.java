@@ -0,0 +1,222 @@
+package h2o.util.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Live hot-path counters of a {@link ConcurrentLinkedBlockingQueue}, kept in
+ * striped {@link LongAdder}s so that recording an event does not make the
+ * threads of a queue contend on one more cache line. A queue built without
+ * {@link ConcurrentLinkedBlockingQueue.Builder#stats(boolean) stats} has none,
+ * and its hot paths only test a null field.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public final class QueueStats implements QueueStatsMXBean
+{
+    private final LongAdder _parks = new LongAdder();
+    private final LongAdder _unparks = new LongAdder();
+    private final LongAdder _spurious = new LongAdder();
+    private final LongAdder _recheckWins = new LongAdder();
+    private final LongAdder _skipped = new LongAdder();
+    private final LongAdder _casRetries = new LongAdder();
+    private final LongAdder _parkNanos = new LongAdder();
+
+    QueueStats()
+    {
+    }
+
+    /**
+     * Records a park that lasted the given time; spurious if the thread was
+     * neither woken up, interrupted nor timed out.
+     */
+    void parked(long nanos, boolean spurious)
+    {
+        _parks.increment();
+        _parkNanos.add(nanos);
+
+        if (spurious)
+        {
+            _spurious.increment();
+        }
+    }
+
+    void unparked()
+    {
+        _unparks.increment();
+    }
+
+    void recheckWon()
+    {
+        _recheckWins.increment();
+    }
+
+    void skipped()
+    {
+        _skipped.increment();
+    }
+
+    void casRetried()
+    {
+        _casRetries.increment();
+    }
+
+    public long getParks()
+    {
+        return _parks.sum();
+    }
+
+    public long getUnparks()
+    {
+        return _unparks.sum();
+    }
+
+    public long getSpuriousWakeups()
+    {
+        return _spurious.sum();
+    }
+
+    public long getRecheckWins()
+    {
+        return _recheckWins.sum();
+    }
+
+    public long getSkippedMarkers()
+    {
+        return _skipped.sum();
+    }
+
+    public long getCapacityCasRetries()
+    {
+        return _casRetries.sum();
+    }
+
+    public long getParkNanos()
+    {
+        return _parkNanos.sum();
+    }
+
+    public double getMeanParkMicros()
+    {
+        return snapshot().getMeanParkMicros();
+    }
+
+    /**
+     * Returns a copy of the current counts.
+     */
+    public Snapshot snapshot()
+    {
+        return new Snapshot(getParks(), getUnparks(), getSpuriousWakeups(), getRecheckWins(),
+                            getSkippedMarkers(), getCapacityCasRetries(), getParkNanos());
+    }
+
+    /**
+     * Registers these counters with the platform MBean server under
+     * {@code h2o.util.concurrent:type=QueueStats,name=<name>}; returns the name
+     * they were registered under.
+     */
+    public ObjectName register(String name) throws JMException
+    {
+        ObjectName objectName =
+            new ObjectName("h2o.util.concurrent:type=QueueStats,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public String toString()
+    {
+        return snapshot().toString();
+    }
+
+    /**
+     * Immutable copy of the counts of a {@link QueueStats} at one point in
+     * time; the counts are read one after another, not atomically together.
+     */
+    public static final class Snapshot implements QueueStatsMXBean
+    {
+        private final long _parks;
+        private final long _unparks;
+        private final long _spurious;
+        private final long _recheckWins;
+        private final long _skipped;
+        private final long _casRetries;
+        private final long _parkNanos;
+
+        Snapshot(long parks, long unparks, long spurious, long recheckWins, long skipped, long casRetries,
+                 long parkNanos)
+        {
+            _parks = parks;
+            _unparks = unparks;
+            _spurious = spurious;
+            _recheckWins = recheckWins;
+            _skipped = skipped;
+            _casRetries = casRetries;
+            _parkNanos = parkNanos;
+        }
+
+        public long getParks()
+        {
+            return _parks;
+        }
+
+        public long getUnparks()
+        {
+            return _unparks;
+        }
+
+        public long getSpuriousWakeups()
+        {
+            return _spurious;
+        }
+
+        public long getRecheckWins()
+        {
+            return _recheckWins;
+        }
+
+        public long getSkippedMarkers()
+        {
+            return _skipped;
+        }
+
+        public long getCapacityCasRetries()
+        {
+            return _casRetries;
+        }
+
+        public long getParkNanos()
+        {
+            return _parkNanos;
+        }
+
+        public double getMeanParkMicros()
+        {
+            return _parks == 0 ? 0 : _parkNanos / 1e3 / _parks;
+        }
+
+        /**
+         * Returns the counts accumulated since the given earlier snapshot.
+         */
+        public Snapshot minus(Snapshot earlier)
+        {
+            return new Snapshot(_parks - earlier._parks, _unparks - earlier._unparks,
+                                _spurious - earlier._spurious, _recheckWins - earlier._recheckWins,
+                                _skipped - earlier._skipped, _casRetries - earlier._casRetries,
+                                _parkNanos - earlier._parkNanos);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("parks=%d, unparks=%d, spuriousWakeups=%d, recheckWins=%d, skippedMarkers=%d, "
+                                 + "capacityCasRetries=%d, meanPark=%.1fus",
+                                 _parks, _unparks, _spurious, _recheckWins, _skipped, _casRetries,
+                                 getMeanParkMicros());
+        }
+    }
+}
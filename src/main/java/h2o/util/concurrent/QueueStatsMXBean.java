@@ -0,0 +1,58 @@
+package h2o.util.concurrent;
+
+/**
+ * Management interface of the hot-path counters of a
+ * {@link ConcurrentLinkedBlockingQueue} built with
+ * {@link ConcurrentLinkedBlockingQueue.Builder#stats(boolean) stats(true)}. All
+ * counts are cumulative since the queue was created and exact only while the
+ * queue is quiescent.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public interface QueueStatsMXBean
+{
+    /**
+     * Returns how many times a consumer or producer parked.
+     */
+    long getParks();
+
+    /**
+     * Returns how many times a thread unparked a parked consumer or producer.
+     */
+    long getUnparks();
+
+    /**
+     * Returns how many parks returned before the time out without the thread
+     * having been woken up or interrupted.
+     */
+    long getSpuriousWakeups();
+
+    /**
+     * Returns how many times a thread about to park found an element (or a free
+     * slot) on its re-check after announcing itself, and did not park.
+     */
+    long getRecheckWins();
+
+    /**
+     * Returns how many park markers wakers had to skip because their owners had
+     * stopped waiting.
+     */
+    long getSkippedMarkers();
+
+    /**
+     * Returns how many compare-and-set attempts on the capacity accounting of a
+     * bounded queue failed and had to be retried.
+     */
+    long getCapacityCasRetries();
+
+    /**
+     * Returns the total time spent parked, in nanoseconds.
+     */
+    long getParkNanos();
+
+    /**
+     * Returns the mean time spent per park, in microseconds.
+     */
+    double getMeanParkMicros();
+}
@@ -0,0 +1,222 @@
+package h2o.util.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Flow.Subscriber} that inserts what it receives into a
+ * {@link ConcurrentLinkedBlockingQueue}, turning the capacity of a bounded queue
+ * into backpressure: it never has more elements requested than the queue has
+ * room for, and requests more once half of them arrived. While the queue is
+ * full and nothing is on its way, it waits without a thread, with a marker in
+ * the park queue of producers waiting for space. The consumer that frees
+ * space merely hands the request for more to the executor, so no upstream
+ * onNext runs inside a take or poll. An unbounded queue requests everything up
+ * front.
+ * <p>
+ * onNext only waits for space should other producers have taken the room it
+ * requested elements for. The queue has no notion of completion, so onError
+ * and onComplete merely stop requesting. An executor that rejects the request
+ * cancels the subscription.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public final class QueueSubscriber<E> implements Flow.Subscriber<E>
+{
+    private final ConcurrentLinkedBlockingQueue<E> _q;
+    // null for an unbounded queue
+    private final ConcurrentLinkedBlockingQueue.ParkQueue _putparkq;
+    private final Executor _executor;
+    private final SpaceWaiter _waiter = new SpaceWaiter();
+    private final AtomicReference<Flow.Subscription> _subscription = new AtomicReference<Flow.Subscription>();
+    // requested but not yet received
+    private final AtomicLong _outstanding = new AtomicLong();
+    // requests are worked out by one thread at a time
+    private final AtomicInteger _wip = new AtomicInteger();
+    private volatile long _lowWater;
+    private volatile boolean _waiting;
+    private volatile boolean _done;
+
+    QueueSubscriber(ConcurrentLinkedBlockingQueue<E> q, ConcurrentLinkedBlockingQueue.ParkQueue putparkq,
+                    Executor executor)
+    {
+        _q = q;
+        _putparkq = putparkq;
+        _executor = executor;
+    }
+
+    public void onSubscribe(Flow.Subscription subscription)
+    {
+        if (subscription == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if (!_subscription.compareAndSet(null, subscription))
+        {
+            subscription.cancel();
+            return;
+        }
+
+        if (_putparkq == null)
+        {
+            subscription.request(Long.MAX_VALUE);
+        }
+        else
+        {
+            replenish();
+        }
+    }
+
+    public void onNext(E e)
+    {
+        if (!_q.offer(e))
+        {
+            putUninterruptibly(e);
+        }
+
+        if (_putparkq != null && _outstanding.decrementAndGet() <= _lowWater)
+        {
+            replenish();
+        }
+    }
+
+    public void onError(Throwable t)
+    {
+        _done = true;
+    }
+
+    public void onComplete()
+    {
+        _done = true;
+    }
+
+    /**
+     * Inserts an element that was sent for room another producer took.
+     */
+    private void putUninterruptibly(E e)
+    {
+        boolean interrupted = false;
+
+        for (;;)
+        {
+            try
+            {
+                _q.put(e);
+                break;
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Requests as many elements as there is room for beyond those on their way,
+     * or waits for space if there is none and nothing is on its way.
+     */
+    private void replenish()
+    {
+        if (_wip.getAndIncrement() != 0)
+        {
+            return;
+        }
+
+        int missed = 1;
+
+        for (;;)
+        {
+            while (!_done && !_waiting)
+            {
+                final long outstanding = _outstanding.get();
+                final long room = _q.remainingCapacity() - outstanding;
+
+                if (room > 0)
+                {
+                    _lowWater = (outstanding + room) / 2;
+                    _outstanding.addAndGet(room);
+                    _subscription.get().request(room);
+                    break;
+                }
+
+                if (outstanding > 0 || !awaitSpace())
+                {
+                    break;
+                }
+            }
+
+            missed = _wip.addAndGet(-missed);
+
+            if (missed == 0)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Links the marker in to be woken once there is space; returns true if
+     * there was already, i.e. the caller should look again.
+     */
+    private boolean awaitSpace()
+    {
+        _waiting = true;
+        _putparkq.enqueue(_waiter);
+
+        if (_q.remainingCapacity() > 0 && _waiter.withdraw())
+        {
+            _putparkq.recheckWon(_waiter);
+            _waiting = false;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Marker without a thread; a consumer that frees space and would unpark a
+     * waiting producer has more elements requested on the executor instead.
+     */
+    private final class SpaceWaiter extends ConcurrentLinkedBlockingQueue.ThreadMarker implements Runnable
+    {
+        SpaceWaiter()
+        {
+            super(null);
+        }
+
+        @Override
+        void unpark()
+        {
+            // leave before anyone may link the marker in again
+            _putparkq.leave(this);
+            _waiting = false;
+
+            try
+            {
+                _executor.execute(this);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // requesting right here would run upstream in the consumer
+                _done = true;
+                _subscription.get().cancel();
+            }
+        }
+
+        public void run()
+        {
+            replenish();
+        }
+    }
+}
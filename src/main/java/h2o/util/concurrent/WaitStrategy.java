@@ -0,0 +1,145 @@
+package h2o.util.concurrent;
+
+/**
+ * Decides what a thread that found a {@link ConcurrentLinkedBlockingQueue} empty
+ * (or full) does before it falls back to registering a marker and parking.
+ * Spinning or yielding avoids the active-to-blocked transition and its wakeup
+ * latency at the cost of burning CPU while the queue stays empty.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public abstract class WaitStrategy
+{
+    /** Parks right away; the default, cheapest on CPU. */
+    public static final WaitStrategy PARK = new WaitStrategy()
+    {
+        @Override
+        public boolean idle(int attempt)
+        {
+            return false;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "park";
+        }
+    };
+
+    /**
+     * Never parks; lowest handoff latency, but keeps one core busy per waiting
+     * thread.
+     */
+    public static WaitStrategy busySpin()
+    {
+        return new WaitStrategy()
+        {
+            @Override
+            public boolean idle(int attempt)
+            {
+                Thread.onSpinWait();
+                return true;
+            }
+
+            @Override
+            public String toString()
+            {
+                return "spin";
+            }
+        };
+    }
+
+    /**
+     * Spins for the given number of attempts, then yields the processor on every
+     * further attempt without ever parking.
+     */
+    public static WaitStrategy spinThenYield(final int spins)
+    {
+        if (spins < 0)
+        {
+            throw new IllegalArgumentException("spins must be >= 0");
+        }
+
+        return new WaitStrategy()
+        {
+            @Override
+            public boolean idle(int attempt)
+            {
+                if (attempt < spins)
+                {
+                    Thread.onSpinWait();
+                }
+                else
+                {
+                    Thread.yield();
+                }
+
+                return true;
+            }
+
+            @Override
+            public String toString()
+            {
+                return "spin(" + spins + ")/yield";
+            }
+        };
+    }
+
+    /**
+     * Spins for the given number of attempts, then yields for the given number of
+     * attempts, then parks.
+     */
+    public static WaitStrategy spinThenPark(final int spins, final int yields)
+    {
+        if (spins < 0 || yields < 0)
+        {
+            throw new IllegalArgumentException("spins and yields must be >= 0");
+        }
+
+        final long budget = (long)spins + yields;
+
+        return new WaitStrategy()
+        {
+            @Override
+            public boolean idle(int attempt)
+            {
+                if (attempt < spins)
+                {
+                    Thread.onSpinWait();
+                    return true;
+                }
+
+                if (attempt < budget)
+                {
+                    Thread.yield();
+                    return true;
+                }
+
+                return false;
+            }
+
+            @Override
+            public String toString()
+            {
+                return "spin(" + spins + ")/yield(" + yields + ")/park";
+            }
+        };
+    }
+
+    /**
+     * Called after the given number of failed attempts, which stays at
+     * Integer.MAX_VALUE once it got there; either idles briefly and returns true
+     * to have the caller try again, or returns false to have it park.
+     */
+    public abstract boolean idle(int attempt);
+
+    /**
+     * Returns the attempt after the given one, saturating rather than wrapping
+     * around to the first attempts of a long wait.
+     */
+    static int next(int attempt)
+    {
+        return attempt < Integer.MAX_VALUE ? attempt + 1 : attempt;
+    }
+}
@@ -0,0 +1,382 @@
+
+package h2o.util.concurrent.queuebench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class of the throughput drivers: runs producer and consumer tasks, which
+ * subclasses create for the queue under test, on thread pools and times them.
+ * <p>
+ * Written by Hanson Char and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ * 
+ * @author Hanson Char
+ */
+public abstract class AbstractQueueTest implements Callable<Void>
+{
+    protected static final int TOTAL = 100000 * 10;
+
+    /** Timed runs per driver; "repeat" property. */
+    protected static final int REPEAT = Integer.getInteger("repeat", 10);
+
+    /** Untimed runs before the timed ones, to let the JIT settle; "warmup" property. */
+    protected static final int WARMUP = Integer.getInteger("warmup", 3);
+
+    /**
+     * If positive, consumers take one item, then drainTo up to this many more at a
+     * time instead of taking them one by one; "drainBatch" property.
+     */
+    protected static final int DRAIN_BATCH = Integer.getInteger("drainBatch", 0);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    /** Wait-time to compute-time ratio. */
+    protected final float wcRatio;
+    protected final int numConsumer;
+    protected final int numProducer;
+    protected final Integer capacity;
+    /** Capacity of the queue under test; null for unbounded. */
+    protected final Integer queueCapacity;
+
+    private final int producerThreadPoolSize;
+    private final int consumerThreadPoolSize;
+    protected final int batchSize;
+    protected final int totalSize;
+
+    /** Bytes allocated by producer and consumer tasks since construction. */
+    private final AtomicLong allocated = new AtomicLong();
+    /** Number of items producers could not offer without blocking. */
+    private final AtomicLong blocked = new AtomicLong();
+    /** Collections, collection time and process CPU time over the timed rounds. */
+    private long gcCount;
+    private long gcMillis;
+    private long cpuNanos;
+
+    protected AbstractQueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity,
+                                Integer queueCapacity)
+    {
+        this.wcRatio = wcRatio < 0 ? 0 : wcRatio;
+        this.numConsumer = numConsumer < 1 ? 1 : numConsumer;
+        this.numProducer = numProducer < 1 ? 1 : numProducer;
+        this.capacity = capacity;
+        this.queueCapacity = queueCapacity;
+
+        final int numProcessors = Runtime.getRuntime().availableProcessors();
+        // JCiP section 8.2 - Sizing thread pools
+        int threadPoolSize = (int)(numProcessors * (1 + this.wcRatio));
+
+        if (threadPoolSize == numProcessors) threadPoolSize++;
+        this.producerThreadPoolSize = numProducer > threadPoolSize ? threadPoolSize : numProducer;
+        this.consumerThreadPoolSize = numConsumer > threadPoolSize ? threadPoolSize : numConsumer;
+        this.batchSize = TOTAL / this.numProducer;
+        this.totalSize = this.batchSize * this.numProducer;
+    }
+
+    protected AbstractQueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity)
+    {
+        this(wcRatio, numConsumer, numProducer, capacity, null);
+    }
+
+    protected AbstractQueueTest()
+    {
+        this(0, 1, 10, null);
+    }
+
+    /**
+     * Returns a new producer of {@link #batchSize} items, numbered from the given
+     * start; producers of a bounded queue report the items they could not offer
+     * without blocking to {@link #addBlocked(long)}.
+     */
+    protected abstract Callable<Void> newProducer(int start);
+
+    /**
+     * Returns a consumer that takes the given number of items one by one.
+     */
+    protected abstract Callable<Void> newConumerCallable(int max);
+
+    /**
+     * Returns a consumer of the given number of items that blocks for one item,
+     * then drains up to {@link #DRAIN_BATCH} more at a time.
+     */
+    protected abstract Callable<Void> newDrainingConsumer(int max);
+
+    protected abstract BlockingQueue<Runnable> newThreadPoolBlockingQueue(Integer capacity);
+
+    /** Describes the queue configuration under test, appended to the class name. */
+    protected String getVariant()
+    {
+        return "";
+    }
+
+    /**
+     * Returns the number of stale park markers the queue under test had to skip
+     * over all runs so far, or -1 if it does not count them.
+     */
+    protected long getSkippedMarkers()
+    {
+        return -1;
+    }
+
+    /**
+     * Returns the hot-path statistics the queue under test recorded over all
+     * runs so far, or null if it does not record any.
+     */
+    protected Object getStats()
+    {
+        return null;
+    }
+
+    /**
+     * Runs {@link #WARMUP} untimed and {@link #REPEAT} timed rounds; returns the
+     * durations of the timed ones in nanoseconds, sorted.
+     */
+    public long[] measure() throws InterruptedException, ExecutionException
+    {
+        // the pools and their threads are set up once, outside of any timed run
+        final ExecutorService producerExecutorService = newFixedThreadPool(producerThreadPoolSize);
+        final ExecutorService consumerExecutorService = newFixedThreadPool(consumerThreadPoolSize);
+        final long[] durations = new long[REPEAT];
+
+        try
+        {
+            for (int i = 0; i < WARMUP; i++)
+                this.test(producerExecutorService, consumerExecutorService);
+            allocated.set(0);
+            blocked.set(0);
+            gcCount = -gcCount();
+            gcMillis = -gcMillis();
+            cpuNanos = -cpuNanos();
+
+            for (int i = 0; i < REPEAT; i++)
+                durations[i] = this.test(producerExecutorService, consumerExecutorService);
+            gcCount += gcCount();
+            gcMillis += gcMillis();
+            cpuNanos += cpuNanos();
+        }
+        finally
+        {
+            // Shutdown all thread pools
+            producerExecutorService.shutdownNow();
+            consumerExecutorService.shutdownNow();
+        }
+
+        Arrays.sort(durations);
+        return durations;
+    }
+
+    /**
+     * Returns the bytes producers and consumers allocated per item over the
+     * timed rounds of {@link #measure()}.
+     */
+    public double getAllocatedPerItem()
+    {
+        return (double)allocated.get() / ((long)totalSize * REPEAT);
+    }
+
+    /**
+     * Returns the share of puts that found the queue full over the timed rounds
+     * of {@link #measure()}.
+     */
+    public double getBlockedRatio()
+    {
+        return (double)blocked.get() / ((long)totalSize * REPEAT);
+    }
+
+    /**
+     * Returns the number of garbage collections during the timed rounds of
+     * {@link #measure()}.
+     */
+    public long getGcCount()
+    {
+        return gcCount;
+    }
+
+    /**
+     * Returns the accumulated collection time in milliseconds during the timed
+     * rounds of {@link #measure()}.
+     */
+    public long getGcMillis()
+    {
+        return gcMillis;
+    }
+
+    /**
+     * Returns the CPU time the whole process used during the timed rounds of
+     * {@link #measure()}, in nanoseconds, or a negative value if unknown.
+     */
+    public long getCpuNanos()
+    {
+        return cpuNanos;
+    }
+
+    /**
+     * Adds the given number of puts that found the queue full.
+     */
+    protected void addBlocked(long full)
+    {
+        blocked.addAndGet(full);
+    }
+
+    private static long gcCount()
+    {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long gcMillis()
+    {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    private static long cpuNanos()
+    {
+        return ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean())
+            .getProcessCpuTime();
+    }
+
+    public Void call() throws InterruptedException, ExecutionException
+    {
+        final long[] durations = measure();
+        double average = 0;
+        for (long duration : durations)
+            average += duration;
+        average /= REPEAT;
+        double variance = 0;
+        for (long duration : durations)
+            variance += (duration - average) * (duration - average);
+        double stddev = REPEAT > 1 ? Math.sqrt(variance / (REPEAT - 1)) : 0;
+        long median = durations[REPEAT / 2];
+        System.out.println();
+        System.out.println(getClass().getName() + getVariant());
+        System.out.println("Producer thread pool size is " + producerThreadPoolSize);
+        System.out.println("Consumer thread pool size is " + consumerThreadPoolSize);
+        if (queueCapacity != null)
+            System.out.println("Queue capacity is " + queueCapacity);
+        if (DRAIN_BATCH > 0)
+            System.out.println("Consumers drain up to " + DRAIN_BATCH + " items at a time");
+        System.out.println("Total items per test: " + TOTAL + ", Warmed up: " + WARMUP + " times, Tested: " + REPEAT
+                           + " times");
+        System.out.println(String.format("Avg: %.3f ms (stddev %.3f ms)%nmedian: %.3f ms%nmin: %.3f ms%nmax: %.3f ms",
+            average / 1e6, stddev / 1e6, median / 1e6, durations[0] / 1e6, durations[REPEAT - 1] / 1e6));
+        System.out.println(String.format("Throughput: %.3f Mitems/s (median)", totalSize * 1e3 / median));
+        System.out.println(String.format("Allocated: %.3f bytes/item", getAllocatedPerItem()));
+        if (queueCapacity != null)
+            System.out.println(String.format("Producers blocked: %.2f%% of puts", 100.0 * getBlockedRatio()));
+        long skipped = getSkippedMarkers();
+        if (skipped >= 0)
+            System.out.println(String.format("Stale markers skipped: %d (%.4f/item)", skipped, (double)skipped / ((long)totalSize * REPEAT)));
+        Object stats = getStats();
+        if (stats != null)
+            System.out.println("Stats: " + stats);
+        System.out.println();
+        return null;
+    }
+
+    /**
+     * Runs all producers and consumers once on the given pools; returns the time
+     * in nanoseconds from releasing the first tasks on every pool thread until
+     * the last consumer is done, so that neither submission nor thread wakeup is
+     * timed.
+     */
+    public long test(ExecutorService producerExecutorService, ExecutorService consumerExecutorService)
+        throws InterruptedException, ExecutionException
+    {
+        int takeSize = this.totalSize / numConsumer;
+        int takeExtra = this.totalSize - takeSize * numConsumer;
+        List<Future<Void>> consumerFutures = new ArrayList<Future<Void>>(numConsumer + 1);
+        List<Future<Void>> producerFutures = new ArrayList<Future<Void>>(numProducer);
+        // every pool thread picks up one task and waits at the gate; the tasks
+        // queued behind them find the gate open
+        final CountDownLatch ready = new CountDownLatch(producerThreadPoolSize + consumerThreadPoolSize);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        // Submit the consumers
+        consumerFutures.add(consumerExecutorService.submit(gate(ready, start, trackAllocation(newConsumer(takeSize + takeExtra)))));
+
+        for (int i = 1; i < numConsumer; i++)
+            consumerFutures.add(consumerExecutorService.submit(gate(ready, start, trackAllocation(newConsumer(takeSize)))));
+        // Submit all producers
+        for (int i = 0; i < numProducer; i++)
+            producerFutures.add(producerExecutorService.submit(gate(ready, start, trackAllocation(newProducer(i * batchSize)))));
+        ready.await();
+
+        final long t0 = System.nanoTime();
+        start.countDown();
+        // wait for all producers to complete
+        for (Future<Void> producerFuture : producerFutures)
+            producerFuture.get();
+        // wait for all consumers to complete
+        for (Future<Void> consumerFuture : consumerFutures)
+            consumerFuture.get();
+        // Calculate the duration
+        return System.nanoTime() - t0;
+    }
+
+    private ExecutorService newFixedThreadPool(int nThreads)
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+            newThreadPoolBlockingQueue(this.capacity));
+        pool.prestartAllCoreThreads();
+        return pool;
+    }
+
+    /**
+     * Wraps the given task so that it announces itself as ready, then waits for
+     * the start signal before running.
+     */
+    private static Callable<Void> gate(final CountDownLatch ready, final CountDownLatch start,
+                                       final Callable<Void> task)
+    {
+        return new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                ready.countDown();
+                start.await();
+                return task.call();
+            }
+        };
+    }
+
+    private Callable<Void> newConsumer(int max)
+    {
+        return DRAIN_BATCH > 0 ? newDrainingConsumer(max) : newConumerCallable(max);
+    }
+
+    /**
+     * Wraps the given task so that the bytes it allocates on its pool thread are
+     * added to the allocation total.
+     */
+    private Callable<Void> trackAllocation(final Callable<Void> task)
+    {
+        return new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                final long id = Thread.currentThread().getId();
+                final long before = THREADS.getThreadAllocatedBytes(id);
+
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    allocated.addAndGet(THREADS.getThreadAllocatedBytes(id) - before);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,62 @@
+package h2o.util.concurrent.queuebench;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Used to test the performance of ArrayBlockingQueue, the JDK's array backed
+ * bounded queue, against the bounded variants of ConcurrentLinkedBlockingQueue.
+ * Run on its own it uses the "queueCapacity" property, 1024 by default.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ *
+ * @see LinkedBlockingQueueTest
+ */
+public class ArrayBlockingQueueTest extends AbstractBlockingQueueTest
+{
+    private final ArrayBlockingQueue<Integer> q;
+
+    public ArrayBlockingQueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity,
+                                  int queueCapacity)
+    {
+        super(wcRatio, numConsumer, numProducer, capacity, queueCapacity);
+        this.q = new ArrayBlockingQueue<Integer>(queueCapacity);
+    }
+
+    @Override
+    protected BlockingQueue<Integer> getQueue()
+    {
+        return q;
+    }
+
+    @Override
+    protected Callable<Void> newConumerCallable(final int max)
+    {
+        return new Callable<Void>()
+        {
+            public Void call() throws InterruptedException
+            {
+                for (int count = 0; count < max; count++)
+                    q.take();
+                return null;
+            }
+        };
+    }
+
+    @Override
+    protected BlockingQueue<Runnable> newThreadPoolBlockingQueue(Integer capacity)
+    {
+        return capacity == null ? new LinkedBlockingQueue<Runnable>() : new LinkedBlockingQueue<Runnable>(
+            capacity);
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException
+    {
+        new ArrayBlockingQueueTest(0, 1, 10, null, Integer.getInteger("queueCapacity", 1024)).call();
+        System.exit(0);
+    }
+}
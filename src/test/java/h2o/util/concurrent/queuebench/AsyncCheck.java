@@ -0,0 +1,227 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Checks the async consumers of ConcurrentLinkedBlockingQueue: pollAsync
+ * completes with null once it timed out, a cancelled takeAsync neither takes
+ * an element nor swallows the wakeup meant for a live waiter, an element raced
+ * by a cancel or a timeout ends up either in the future or in the queue, and a
+ * future given an executor is completed on it.
+ * <p>
+ * Properties: "items" for the races (default 20000) and "timeoutMillis"
+ * (default 30000).
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class AsyncCheck
+{
+    private static final int ITEMS = Integer.getInteger("items", 20000);
+
+    static void pollAsyncTimesOut() throws Exception
+    {
+        ConcurrentLinkedBlockingQueue<Integer> q = new ConcurrentLinkedBlockingQueue<Integer>();
+        final long t0 = System.nanoTime();
+        Integer e = q.pollAsync(20, TimeUnit.MILLISECONDS).get(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        Checks.check(e == null, "timed out pollAsync completed with " + e);
+        Checks.check(System.nanoTime() - t0 >= TimeUnit.MILLISECONDS.toNanos(20), "pollAsync timed out early");
+        q.offer(1);
+        Checks.check(Integer.valueOf(1).equals(q.poll()), "timed out pollAsync took a later element");
+    }
+
+    static void cancelledTakeLeavesElement()
+    {
+        ConcurrentLinkedBlockingQueue<Integer> q = new ConcurrentLinkedBlockingQueue<Integer>();
+        CompletableFuture<Integer> f = q.takeAsync();
+        Checks.check(f.cancel(false) && f.isCancelled(), "takeAsync could not be cancelled");
+        q.offer(1);
+        Checks.check(Integer.valueOf(1).equals(q.poll()), "cancelled takeAsync took a later element");
+        try
+        {
+            f.join();
+            Checks.check(false, "cancelled takeAsync completed normally");
+        }
+        catch (CancellationException e)
+        {
+            // expected
+        }
+    }
+
+    static void cancelledWaitersKeepNoWakeup() throws Exception
+    {
+        ConcurrentLinkedBlockingQueue<Integer> q = new ConcurrentLinkedBlockingQueue<Integer>();
+        for (int i = 0; i < 100; i++)
+            q.takeAsync().cancel(false);
+        CompletableFuture<Integer> live = q.takeAsync();
+        q.offer(7);
+        Integer e = live.get(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        Checks.check(Integer.valueOf(7).equals(e), "live waiter got " + e);
+        Checks.check(q.isEmpty(), "queue not empty");
+    }
+
+    /**
+     * Lets a producer offer numbered elements while this thread waits for them
+     * with futures it cancels right away, or with short pollAsyncs; each
+     * element must end up exactly once in a future or in the queue.
+     */
+    static void raceExactlyOnce(final ConcurrentLinkedBlockingQueue<Integer> q) throws Exception
+    {
+        final AtomicIntegerArray seen = new AtomicIntegerArray(ITEMS);
+        Thread producer = new Thread("producer")
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < ITEMS; i++)
+                {
+                    q.offer(i);
+                    if (i % 64 == 0)
+                        Thread.yield();
+                }
+            }
+        };
+        producer.setDaemon(true);
+        producer.start();
+
+        for (int i = 0; producer.isAlive() || !q.isEmpty(); i++)
+        {
+            CompletableFuture<Integer> f = i % 2 == 0 ? q.takeAsync() : q.pollAsync(50, TimeUnit.MICROSECONDS);
+            if (i % 2 == 0)
+                f.cancel(false);
+            Integer e;
+            try
+            {
+                e = f.get(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch (CancellationException ex)
+            {
+                continue;
+            }
+            if (e != null)
+                seen.incrementAndGet(e);
+        }
+        for (Integer e = q.poll(); e != null; e = q.poll())
+            seen.incrementAndGet(e);
+
+        for (int i = 0; i < ITEMS; i++)
+            Checks.check(seen.get(i) == 1, "element " + i + " arrived " + seen.get(i) + " times");
+    }
+
+    static void completesOnExecutor() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(r, "async-executor");
+            }
+        });
+        try
+        {
+            ConcurrentLinkedBlockingQueue<Integer> q = new ConcurrentLinkedBlockingQueue<Integer>();
+            final AtomicReference<String> thread = new AtomicReference<String>();
+            CompletableFuture<Integer> f = q.takeAsync(executor);
+            f.whenComplete(new BiConsumer<Integer, Throwable>()
+            {
+                public void accept(Integer e, Throwable t)
+                {
+                    thread.set(Thread.currentThread().getName());
+                }
+            });
+            q.offer(1);
+            Checks.check(Integer.valueOf(1).equals(f.get(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)),
+                "takeAsync(executor) got " + f.getNow(null));
+            executor.submit(new Runnable()
+            {
+                public void run()
+                {
+                }
+            }).get();
+            Checks.check("async-executor".equals(thread.get()), "future completed on " + thread.get());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    static void singleConsumerUnsupported()
+    {
+        try
+        {
+            ConcurrentLinkedBlockingQueue.<Integer>mpsc().takeAsync();
+            Checks.check(false, "takeAsync on a single-consumer queue did not throw");
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // expected
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        boolean ok = true;
+
+        ok &= Checks.run("pollAsync times out", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                pollAsyncTimesOut();
+            }
+        });
+        ok &= Checks.run("cancelled takeAsync leaves the element", new Checks.Check()
+        {
+            public void run()
+            {
+                cancelledTakeLeavesElement();
+            }
+        });
+        ok &= Checks.run("cancelled waiters keep no wakeup", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                cancelledWaitersKeepNoWakeup();
+            }
+        });
+        ok &= Checks.run("cancel and timeout races, exactly once", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                raceExactlyOnce(new ConcurrentLinkedBlockingQueue<Integer>());
+            }
+        });
+        ok &= Checks.run("cancel and timeout races with reused markers, exactly once", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                raceExactlyOnce(ConcurrentLinkedBlockingQueue.<Integer>builder().reuseMarkers(true).build());
+            }
+        });
+        ok &= Checks.run("takeAsync(executor) completes on the executor", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                completesOnExecutor();
+            }
+        });
+        ok &= Checks.run("single-consumer queues reject takeAsync", new Checks.Check()
+        {
+            public void run()
+            {
+                singleConsumerUnsupported();
+            }
+        });
+        System.exit(ok ? 0 : 1);
+    }
+}
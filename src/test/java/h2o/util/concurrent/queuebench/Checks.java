@@ -0,0 +1,86 @@
+package h2o.util.concurrent.queuebench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Helpers of the checking drivers ("*Check"), which verify behaviour instead of
+ * measuring it: each prints one line per check and exits with status 1 if any
+ * of them failed.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+final class Checks
+{
+    /** How long a check waits for threads before it calls it a hang; "timeoutMillis" property. */
+    static final long TIMEOUT_MILLIS = Long.getLong("timeoutMillis", 30000);
+
+    private Checks()
+    {
+    }
+
+    /**
+     * Fails with the given message unless the condition holds.
+     */
+    static void check(boolean condition, String message)
+    {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * Starts the given threads and waits up to {@link #TIMEOUT_MILLIS} for all
+     * of them; fails with the first exception one of them threw, or with the
+     * given name if one of them is still running.
+     */
+    static void runAll(String name, Thread... threads) throws InterruptedException
+    {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (Thread t : threads)
+        {
+            t.setDaemon(true);
+            t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+            {
+                public void uncaughtException(Thread t, Throwable e)
+                {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            t.start();
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        for (Thread t : threads)
+        {
+            t.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (failure.get() != null)
+                throw new AssertionError(name + ": " + t.getName() + " failed", failure.get());
+            check(!t.isAlive(), name + ": " + t.getName() + " hangs");
+        }
+    }
+
+    /**
+     * Runs the given check, printing "ok" or the failure; returns whether it
+     * passed.
+     */
+    static boolean run(String name, Check check)
+    {
+        try
+        {
+            check.run();
+            System.out.println(name + ": ok");
+            return true;
+        }
+        catch (Throwable t)
+        {
+            System.out.println(name + ": FAILED");
+            t.printStackTrace(System.out);
+            return false;
+        }
+    }
+
+    interface Check
+    {
+        void run() throws Exception;
+    }
+}
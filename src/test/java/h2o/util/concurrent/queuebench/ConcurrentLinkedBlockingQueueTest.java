@@ -3,7 +3,6 @@ package h2o.util.concurrent.queuebench;
 
 import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
 
-import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -19,24 +18,66 @@ import java.util.concurrent.ExecutionException;
  */
 public class ConcurrentLinkedBlockingQueueTest extends AbstractBlockingQueueTest
 {
-    private final ConcurrentLinkedBlockingQueue<Integer> q = new ConcurrentLinkedBlockingQueue<Integer>();
+    private final ConcurrentLinkedBlockingQueue<Integer> q;
+    private final String variant;
+
+    /**
+     * Tests a queue built with non-default options, labelled with the given
+     * variant description.
+     */
+    public ConcurrentLinkedBlockingQueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity,
+                                             Integer queueCapacity, String variant,
+                                             ConcurrentLinkedBlockingQueue.Builder<Integer> builder)
+    {
+        super(wcRatio, numConsumer, numProducer, capacity, queueCapacity);
+        this.variant = variant;
+        builder.stats(Boolean.getBoolean("stats"));
+        this.q = (queueCapacity == null ? builder : builder.capacity(queueCapacity)).build();
+    }
+
+    public ConcurrentLinkedBlockingQueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity,
+                                             Integer queueCapacity)
+    {
+        this(wcRatio, numConsumer, numProducer, capacity, queueCapacity, null,
+            ConcurrentLinkedBlockingQueue.<Integer>builder());
+    }
 
     public ConcurrentLinkedBlockingQueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity)
     {
-        super(wcRatio, numConsumer, numProducer, capacity);
+        this(wcRatio, numConsumer, numProducer, capacity, null);
     }
 
     public ConcurrentLinkedBlockingQueueTest()
     {
         super();
+        this.variant = null;
+        this.q = new ConcurrentLinkedBlockingQueue<Integer>();
     }
 
     @Override
-    protected Queue<Integer> getQueue()
+    protected BlockingQueue<Integer> getQueue()
     {
         return q;
     }
 
+    @Override
+    protected String getVariant()
+    {
+        return variant == null ? "" : " (" + variant + ")";
+    }
+
+    @Override
+    protected long getSkippedMarkers()
+    {
+        return q.skippedMarkers();
+    }
+
+    @Override
+    protected Object getStats()
+    {
+        return q.stats();
+    }
+
     @Override
     protected Callable<Void> newConumerCallable(final int max)
     {
@@ -0,0 +1,238 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+import h2o.util.concurrent.WaitStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Checks that every builder variant of ConcurrentLinkedBlockingQueue delivers
+ * each element exactly once and loses no wakeup: producers insert numbered
+ * elements by put, putAll and offer, consumers remove them by take, timed poll,
+ * takeBatch or drainTo, and every element must arrive once before the threads
+ * time out. The queue must be empty afterwards, with all of a bounded queue's
+ * capacity back.
+ * <p>
+ * Properties: "items" per run (default 100000), "producers" and "consumers"
+ * (default 3 each; single-consumer variants use one) and "timeoutMillis"
+ * (default 30000).
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class DeliveryCheck
+{
+    private static final String[] VARIANTS = {"default", "reuseMarkers", "lifoWakeup", "countSize", "chunked",
+        "lanes", "wakeupLimit", "stats", "busySpin", "spinThenPark", "bounded", "stripedCapacity", "arrayBacked",
+        "mpsc", "spsc", "transferQueue"};
+    private static final String[] CONSUMERS = {"take", "poll", "takeBatch", "drainTo"};
+    private static final int CAPACITY = 64;
+    private static final int BATCH = 16;
+
+    private final int items;
+    private final int numProducer;
+    private final int numConsumer;
+
+    public DeliveryCheck(int items, int numProducer, int numConsumer)
+    {
+        this.items = items;
+        this.numProducer = numProducer;
+        this.numConsumer = numConsumer;
+    }
+
+    /**
+     * Returns a new queue of the given variant.
+     */
+    static ConcurrentLinkedBlockingQueue<Integer> newQueue(String variant)
+    {
+        ConcurrentLinkedBlockingQueue.Builder<Integer> builder = ConcurrentLinkedBlockingQueue.builder();
+        if ("default".equals(variant))
+            return builder.build();
+        if ("reuseMarkers".equals(variant))
+            return builder.reuseMarkers(true).build();
+        if ("lifoWakeup".equals(variant))
+            return builder.lifoWakeup(true).build();
+        if ("countSize".equals(variant))
+            return builder.countSize(true).build();
+        if ("chunked".equals(variant))
+            return builder.chunked(true).build();
+        if ("lanes".equals(variant))
+            return builder.lanes(4).build();
+        if ("wakeupLimit".equals(variant))
+            return builder.wakeupLimit(1).build();
+        if ("stats".equals(variant))
+            return builder.stats(true).build();
+        if ("busySpin".equals(variant))
+            return builder.waitStrategy(WaitStrategy.busySpin()).build();
+        if ("spinThenPark".equals(variant))
+            return builder.waitStrategy(WaitStrategy.spinThenPark(100, 10)).build();
+        if ("bounded".equals(variant))
+            return builder.capacity(CAPACITY).build();
+        if ("stripedCapacity".equals(variant))
+            return builder.capacity(CAPACITY).stripedCapacity(8).build();
+        if ("arrayBacked".equals(variant))
+            return builder.capacity(CAPACITY).arrayBacked(true).build();
+        if ("mpsc".equals(variant))
+            return builder.singleConsumer(true).build();
+        if ("spsc".equals(variant))
+            return builder.singleProducer(true).singleConsumer(true).build();
+        if ("transferQueue".equals(variant))
+            return builder.buildTransferQueue();
+        throw new IllegalArgumentException("unknown variant: " + variant);
+    }
+
+    /**
+     * Moves {@link #items} elements through a queue of the given variant, with
+     * consumers of the given kind, and checks that each arrived exactly once.
+     */
+    public void run(String variant, final String consumer) throws InterruptedException
+    {
+        final ConcurrentLinkedBlockingQueue<Integer> q = newQueue(variant);
+        final int producers = "spsc".equals(variant) ? 1 : numProducer;
+        final int consumers = "mpsc".equals(variant) || "spsc".equals(variant) ? 1 : numConsumer;
+        final AtomicIntegerArray seen = new AtomicIntegerArray(items);
+        final String name = variant + "/" + consumer;
+        Thread[] threads = new Thread[producers + consumers];
+
+        for (int i = 0; i < producers; i++)
+        {
+            final int start = quotaStart(i, producers);
+            final int end = quotaStart(i + 1, producers);
+            final int mode = i % 3;
+            threads[i] = new Thread("producer-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        produce(q, mode, start, end);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < consumers; i++)
+        {
+            final int quota = quotaStart(i + 1, consumers) - quotaStart(i, consumers);
+            threads[producers + i] = new Thread("consumer-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        consume(q, consumer, quota, seen);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+        Checks.runAll(name, threads);
+
+        for (int i = 0; i < items; i++)
+            Checks.check(seen.get(i) == 1, name + ": element " + i + " arrived " + seen.get(i) + " times");
+        Checks.check(q.poll() == null && q.isEmpty() && q.size() == 0, name + ": queue not empty: " + q);
+        if (q.remainingCapacity() != Integer.MAX_VALUE)
+            Checks.check(q.remainingCapacity() == CAPACITY, name + ": remaining capacity " + q.remainingCapacity());
+    }
+
+    /**
+     * Returns the first element of the given one of n shares of the items; the
+     * shares add up to exactly {@link #items}.
+     */
+    private int quotaStart(int i, int n)
+    {
+        return (int)((long)items * i / n);
+    }
+
+    /**
+     * Inserts the given range of elements one by one with put (mode 0), in
+     * batches with putAll (1) or with offer, retrying with a timed offer while
+     * a bounded queue is full (2).
+     */
+    private static void produce(ConcurrentLinkedBlockingQueue<Integer> q, int mode, int start, int end)
+        throws InterruptedException
+    {
+        if (mode == 1)
+        {
+            List<Integer> batch = new ArrayList<Integer>(BATCH);
+            for (int i = start; i < end; batch.clear())
+            {
+                while (i < end && batch.size() < BATCH)
+                    batch.add(i++);
+                q.putAll(batch);
+            }
+            return;
+        }
+        for (int i = start; i < end; i++)
+        {
+            if (mode == 0)
+                q.put(i);
+            else
+            {
+                boolean offered = q.offer(i);
+                while (!offered)
+                    offered = q.offer(i, 1, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Removes the given number of elements the given way and counts them.
+     */
+    private static void consume(ConcurrentLinkedBlockingQueue<Integer> q, String consumer, int quota,
+                                AtomicIntegerArray seen) throws InterruptedException
+    {
+        List<Integer> batch = new ArrayList<Integer>(BATCH);
+        for (int count = 0; count < quota; batch.clear())
+        {
+            if ("take".equals(consumer))
+                batch.add(q.take());
+            else if ("poll".equals(consumer))
+            {
+                Integer e = q.poll(1, TimeUnit.MILLISECONDS);
+                if (e != null)
+                    batch.add(e);
+            }
+            else if ("takeBatch".equals(consumer))
+                q.takeBatch(batch, Math.min(BATCH, quota - count));
+            else if (q.drainTo(batch, Math.min(BATCH, quota - count)) == 0)
+            {
+                Integer e = q.poll(1, TimeUnit.MILLISECONDS);
+                if (e != null)
+                    batch.add(e);
+            }
+            for (Integer e : batch)
+                seen.incrementAndGet(e);
+            count += batch.size();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        final DeliveryCheck check = new DeliveryCheck(Integer.getInteger("items", 100000),
+            Integer.getInteger("producers", 3), Integer.getInteger("consumers", 3));
+        boolean ok = true;
+
+        for (final String variant : VARIANTS)
+            for (final String consumer : CONSUMERS)
+                ok &= Checks.run(variant + "/" + consumer, new Checks.Check()
+                {
+                    public void run() throws Exception
+                    {
+                        check.run(variant, consumer);
+                    }
+                });
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,319 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedExecutor;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Checks ConcurrentLinkedExecutor: every accepted task runs exactly once, also
+ * while shutdown() races the submitters; shutdown() lets queued tasks run and
+ * rejects new ones; shutdownNow() returns the queued tasks unrun and interrupts
+ * running ones, including on a worker that replaced one an Error ended; a
+ * full bounded queue rejects.
+ * <p>
+ * Properties: "tasks" (default 100000) and "timeoutMillis" (default 30000).
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class ExecutorCheck
+{
+    private static final int TASKS = Integer.getInteger("tasks", 100000);
+
+    /** Threads that report uncaught exceptions nowhere, for tasks that throw on purpose. */
+    private static final ThreadFactory QUIET = new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+            {
+                public void uncaughtException(Thread t, Throwable e)
+                {
+                }
+            });
+            return t;
+        }
+    };
+
+    static void awaitTermination(ConcurrentLinkedExecutor executor) throws InterruptedException
+    {
+        Checks.check(executor.awaitTermination(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) && executor.isTerminated(),
+            "executor did not terminate: " + executor);
+    }
+
+    /**
+     * Returns a task that counts its run in the given slot.
+     */
+    static Runnable counting(final AtomicIntegerArray ran, final int i)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                ran.incrementAndGet(i);
+            }
+        };
+    }
+
+    /**
+     * Returns a task that signals it started, then sleeps until interrupted and
+     * signals that.
+     */
+    static Runnable blocking(final CountDownLatch started, final CountDownLatch interrupted)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                started.countDown();
+                try
+                {
+                    Thread.sleep(Checks.TIMEOUT_MILLIS);
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted.countDown();
+                }
+            }
+        };
+    }
+
+    static void everyTaskRunsOnce() throws InterruptedException
+    {
+        final ConcurrentLinkedExecutor executor = new ConcurrentLinkedExecutor(3);
+        final AtomicIntegerArray ran = new AtomicIntegerArray(TASKS);
+        Thread[] submitters = new Thread[2];
+        for (int i = 0; i < submitters.length; i++)
+        {
+            final int start = TASKS * i / submitters.length;
+            final int end = TASKS * (i + 1) / submitters.length;
+            submitters[i] = new Thread("submitter-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = start; j < end; j++)
+                        executor.execute(counting(ran, j));
+                }
+            };
+        }
+        Checks.runAll("submit", submitters);
+        executor.shutdown();
+        awaitTermination(executor);
+        for (int i = 0; i < TASKS; i++)
+            Checks.check(ran.get(i) == 1, "task " + i + " ran " + ran.get(i) + " times");
+    }
+
+    static void shutdownRunsQueuedTasks() throws InterruptedException
+    {
+        ConcurrentLinkedExecutor executor = new ConcurrentLinkedExecutor(1, 1, 0, Executors.defaultThreadFactory());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicIntegerArray ran = new AtomicIntegerArray(100);
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    gate.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        for (int i = 0; i < 100; i++)
+            executor.execute(counting(ran, i));
+        executor.shutdown();
+        try
+        {
+            executor.execute(counting(ran, 0));
+            Checks.check(false, "execute after shutdown was accepted");
+        }
+        catch (RejectedExecutionException e)
+        {
+            // expected
+        }
+        gate.countDown();
+        awaitTermination(executor);
+        for (int i = 0; i < 100; i++)
+            Checks.check(ran.get(i) == 1, "queued task " + i + " ran " + ran.get(i) + " times");
+    }
+
+    static void shutdownNowReturnsQueuedTasks() throws InterruptedException
+    {
+        ConcurrentLinkedExecutor executor = new ConcurrentLinkedExecutor(2, 1, 0, Executors.defaultThreadFactory());
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch interrupted = new CountDownLatch(2);
+        final AtomicIntegerArray ran = new AtomicIntegerArray(100);
+        executor.execute(blocking(started, interrupted));
+        executor.execute(blocking(started, interrupted));
+        Checks.check(started.await(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "blocking tasks did not start");
+        for (int i = 0; i < 100; i++)
+            executor.execute(counting(ran, i));
+        List<Runnable> pending = executor.shutdownNow();
+        Checks.check(pending.size() == 100, "shutdownNow returned " + pending.size() + " of 100 queued tasks");
+        Checks.check(interrupted.await(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "running tasks not interrupted");
+        awaitTermination(executor);
+        for (int i = 0; i < 100; i++)
+            Checks.check(ran.get(i) == 0, "returned task " + i + " ran");
+        Checks.check(executor.shutdownNow().isEmpty(), "second shutdownNow returned tasks");
+    }
+
+    static void shutdownNowReachesReplacement() throws InterruptedException
+    {
+        ConcurrentLinkedExecutor executor = new ConcurrentLinkedExecutor(1, 1, 0, QUIET);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                throw new AssertionError("ends the worker");
+            }
+        });
+        executor.execute(blocking(started, interrupted));
+        Checks.check(started.await(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "no replacement ran the next task");
+        executor.shutdownNow();
+        Checks.check(interrupted.await(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "replacement not interrupted");
+        awaitTermination(executor);
+    }
+
+    static void fullQueueRejects() throws InterruptedException
+    {
+        ConcurrentLinkedExecutor executor = new ConcurrentLinkedExecutor(1, 1, 2, Executors.defaultThreadFactory());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        executor.execute(blocking(started, interrupted));
+        Checks.check(started.await(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "blocking task did not start");
+        final AtomicIntegerArray ran = new AtomicIntegerArray(3);
+        executor.execute(counting(ran, 0));
+        executor.execute(counting(ran, 1));
+        try
+        {
+            executor.execute(counting(ran, 2));
+            Checks.check(false, "execute on a full queue was accepted");
+        }
+        catch (RejectedExecutionException e)
+        {
+            // expected
+        }
+        Checks.check(executor.shutdownNow().size() == 2, "queued tasks lost");
+        awaitTermination(executor);
+    }
+
+    /**
+     * Shuts down while two threads submit; every task that was accepted must
+     * run, and the executor must terminate.
+     */
+    static void shutdownRacesSubmitters() throws InterruptedException
+    {
+        for (int round = 0; round < 100; round++)
+        {
+            final ConcurrentLinkedExecutor executor = new ConcurrentLinkedExecutor(2, 8, 0,
+                Executors.defaultThreadFactory());
+            final AtomicInteger accepted = new AtomicInteger();
+            final AtomicInteger ran = new AtomicInteger();
+            final Runnable task = new Runnable()
+            {
+                public void run()
+                {
+                    ran.incrementAndGet();
+                }
+            };
+            Thread[] submitters = new Thread[2];
+            for (int i = 0; i < submitters.length; i++)
+            {
+                submitters[i] = new Thread("submitter-" + i)
+                {
+                    @Override
+                    public void run()
+                    {
+                        for (int j = 0; j < 2000; j++)
+                        {
+                            try
+                            {
+                                executor.execute(task);
+                                accepted.incrementAndGet();
+                            }
+                            catch (RejectedExecutionException e)
+                            {
+                                // shut down meanwhile
+                            }
+                        }
+                    }
+                };
+                submitters[i].setDaemon(true);
+                submitters[i].start();
+            }
+            Thread.sleep(round % 3);
+            executor.shutdown();
+            for (Thread t : submitters)
+            {
+                t.join(Checks.TIMEOUT_MILLIS);
+                Checks.check(!t.isAlive(), "round " + round + ": " + t.getName() + " hangs");
+            }
+            awaitTermination(executor);
+            Checks.check(accepted.get() == ran.get(), "round " + round + ": " + accepted + " tasks accepted, "
+                                                      + ran + " ran");
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        boolean ok = true;
+
+        ok &= Checks.run("every task runs once", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                everyTaskRunsOnce();
+            }
+        });
+        ok &= Checks.run("shutdown runs queued tasks and rejects new ones", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                shutdownRunsQueuedTasks();
+            }
+        });
+        ok &= Checks.run("shutdownNow returns queued tasks and interrupts running ones", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                shutdownNowReturnsQueuedTasks();
+            }
+        });
+        ok &= Checks.run("shutdownNow reaches a replacement worker", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                shutdownNowReachesReplacement();
+            }
+        });
+        ok &= Checks.run("full bounded queue rejects", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                fullQueueRejects();
+            }
+        });
+        ok &= Checks.run("shutdown racing submitters", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                shutdownRacesSubmitters();
+            }
+        });
+        System.exit(ok ? 0 : 1);
+    }
+}
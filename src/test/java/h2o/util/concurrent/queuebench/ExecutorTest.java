@@ -0,0 +1,138 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+import h2o.util.concurrent.ConcurrentLinkedExecutor;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Used to test the performance of ConcurrentLinkedExecutor against a
+ * ThreadPoolExecutor with a LinkedBlockingQueue or a
+ * ConcurrentLinkedBlockingQueue for many short tasks: a few submitter threads
+ * execute() tiny tasks as fast as they can, and a run ends once all of them
+ * have run.
+ * <p>
+ * Properties: "threads" (default the number of processors), "submitters"
+ * (default 2), "tasks" per run (default 1000000), "batchSize" (default 16),
+ * "warmup" and "repeat" (default 3 and 10).
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class ExecutorTest
+{
+    private final int threads;
+    private final int submitters;
+    private final int tasks;
+    private final LongAdder done = new LongAdder();
+    private final Runnable task = new Runnable()
+    {
+        public void run()
+        {
+            done.increment();
+        }
+    };
+
+    public ExecutorTest(int threads, int submitters, int tasks)
+    {
+        this.threads = threads;
+        this.submitters = submitters;
+        this.tasks = tasks / submitters * submitters;
+    }
+
+    /**
+     * Runs all tasks through the given executor; returns the time in
+     * nanoseconds from the start of submission until the last task ran.
+     */
+    public long run(final ExecutorService executor) throws InterruptedException
+    {
+        final int perSubmitter = tasks / submitters;
+        final long target = done.sum() + tasks;
+        Thread[] submitterThreads = new Thread[submitters];
+
+        for (int i = 0; i < submitters; i++)
+        {
+            submitterThreads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < perSubmitter; j++)
+                        executor.execute(task);
+                }
+            };
+        }
+
+        final long t0 = System.nanoTime();
+        for (Thread t : submitterThreads)
+            t.start();
+        while (done.sum() < target)
+            LockSupport.parkNanos(50000);
+        final long duration = System.nanoTime() - t0;
+        for (Thread t : submitterThreads)
+            t.join();
+        return duration;
+    }
+
+    public void test(String name, ExecutorService executor) throws InterruptedException
+    {
+        final int warmup = Integer.getInteger("warmup", 3);
+        final long[] durations = new long[Integer.getInteger("repeat", 10)];
+
+        try
+        {
+            for (int i = 0; i < warmup; i++)
+                run(executor);
+            for (int i = 0; i < durations.length; i++)
+                durations[i] = run(executor);
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        Arrays.sort(durations);
+        long median = durations[durations.length / 2];
+        System.out.println();
+        System.out.println(name);
+        System.out.println("Workers: " + threads + ", submitters: " + submitters + ", tasks per run: " + tasks);
+        System.out.println(String.format("median: %.3f ms%nmin: %.3f ms%nmax: %.3f ms", median / 1e6,
+            durations[0] / 1e6, durations[durations.length - 1] / 1e6));
+        System.out.println(String.format("Throughput: %.3f Mtasks/s (median)", tasks * 1e3 / median));
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        final int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+        final int batchSize = Integer.getInteger("batchSize", 16);
+        ExecutorTest test = new ExecutorTest(threads, Integer.getInteger("submitters", 2),
+            Integer.getInteger("tasks", 1000000));
+
+        for (int i = 0; i < 3; i++)
+        {
+            test.test("ConcurrentLinkedExecutor (batchSize " + batchSize + ")",
+                new ConcurrentLinkedExecutor(threads, batchSize, 0, Executors.defaultThreadFactory()));
+            System.gc();
+            test.test("ConcurrentLinkedExecutor (batchSize 1)",
+                new ConcurrentLinkedExecutor(threads, 1, 0, Executors.defaultThreadFactory()));
+            System.gc();
+            test.test("ThreadPoolExecutor (ConcurrentLinkedBlockingQueue)",
+                new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ConcurrentLinkedBlockingQueue<Runnable>()));
+            System.gc();
+            test.test("ThreadPoolExecutor (LinkedBlockingQueue)",
+                new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>()));
+            System.gc();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,377 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the Flow views of ConcurrentLinkedBlockingQueue: a publisher signals
+ * onSubscribe before anything else and never two signals at once, splits the
+ * elements between its subscribers exactly once, and signals onError for a
+ * non-positive request or an executor that rejects it; a subscriber of a
+ * bounded queue requests more only on its executor, never on a consumer that
+ * frees space, and inserts every element it receives exactly once.
+ * <p>
+ * Properties: "items" (default 100000) and "timeoutMillis" (default 30000).
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class FlowCheck
+{
+    private static final int ITEMS = Integer.getInteger("items", 100000);
+
+    /**
+     * Counts the elements it receives, requesting them a few at a time, and
+     * records any signal that overlaps another or comes before onSubscribe
+     * returned.
+     */
+    static class CountingSubscriber implements Flow.Subscriber<Integer>
+    {
+        final AtomicIntegerArray seen;
+        final AtomicInteger received;
+        final CountDownLatch done;
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicReference<String> violation = new AtomicReference<String>();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        volatile Flow.Subscription subscription;
+        volatile boolean subscribing;
+        volatile boolean subscribed;
+        // only touched in onNext
+        int count;
+
+        CountingSubscriber(AtomicIntegerArray seen, AtomicInteger received, CountDownLatch done)
+        {
+            this.seen = seen;
+            this.received = received;
+            this.done = done;
+        }
+
+        private void enter(String signal)
+        {
+            if (active.incrementAndGet() != 1)
+                violation.compareAndSet(null, signal + " overlaps another signal");
+            if (!subscribed && !subscribing)
+                violation.compareAndSet(null, signal + " before onSubscribe");
+        }
+
+        public void onSubscribe(Flow.Subscription s)
+        {
+            subscribing = true;
+            enter("onSubscribe");
+            subscription = s;
+            s.request(16);
+            // an onNext that does not wait for us shows up here
+            try
+            {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            subscribing = false;
+            subscribed = true;
+            active.decrementAndGet();
+        }
+
+        public void onNext(Integer e)
+        {
+            enter("onNext");
+            if (subscribing)
+                violation.compareAndSet(null, "onNext during onSubscribe");
+            seen.incrementAndGet(e);
+            if (received.incrementAndGet() == ITEMS)
+                done.countDown();
+            if (++count % 16 == 0)
+                subscription.request(16);
+            active.decrementAndGet();
+        }
+
+        public void onError(Throwable t)
+        {
+            enter("onError");
+            error.compareAndSet(null, t);
+            active.decrementAndGet();
+        }
+
+        public void onComplete()
+        {
+            enter("onComplete");
+            violation.compareAndSet(null, "onComplete from an endless queue");
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Offers the given elements from a daemon thread.
+     */
+    static Thread offering(final ConcurrentLinkedBlockingQueue<Integer> q, final int start, final int end)
+    {
+        Thread producer = new Thread("producer")
+        {
+            @Override
+            public void run()
+            {
+                for (int i = start; i < end; i++)
+                {
+                    q.offer(i);
+                    if (i % 64 == 0)
+                        Thread.yield();
+                }
+            }
+        };
+        producer.setDaemon(true);
+        producer.start();
+        return producer;
+    }
+
+    /**
+     * Publishes elements, half of them queued before the subscribers come and
+     * half offered while they run, to the given number of subscribers and
+     * checks that the signals keep their order and each element arrives once.
+     */
+    static void publisherExactlyOnce(int subscribers) throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            ConcurrentLinkedBlockingQueue<Integer> q = new ConcurrentLinkedBlockingQueue<Integer>();
+            Flow.Publisher<Integer> publisher = q.publisher(executor);
+            AtomicIntegerArray seen = new AtomicIntegerArray(ITEMS);
+            AtomicInteger received = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(1);
+            List<CountingSubscriber> subs = new ArrayList<CountingSubscriber>();
+
+            for (int i = 0; i < ITEMS / 2; i++)
+                q.offer(i);
+            for (int i = 0; i < subscribers; i++)
+            {
+                CountingSubscriber sub = new CountingSubscriber(seen, received, done);
+                subs.add(sub);
+                publisher.subscribe(sub);
+            }
+            offering(q, ITEMS / 2, ITEMS);
+
+            Checks.check(done.await(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS),
+                "hangs after " + received + " of " + ITEMS + " elements");
+            for (CountingSubscriber sub : subs)
+            {
+                sub.subscription.cancel();
+                Checks.check(sub.violation.get() == null, sub.violation.get());
+                Checks.check(sub.error.get() == null, "onError: " + sub.error.get());
+            }
+            for (int i = 0; i < ITEMS; i++)
+                Checks.check(seen.get(i) == 1, "element " + i + " arrived " + seen.get(i) + " times");
+            Checks.check(q.isEmpty(), "queue not empty");
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    static void nonPositiveRequest() throws InterruptedException
+    {
+        ConcurrentLinkedBlockingQueue<Integer> q = new ConcurrentLinkedBlockingQueue<Integer>();
+        q.offer(1);
+        final List<String> signals = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        q.publisher().subscribe(new Flow.Subscriber<Integer>()
+        {
+            public void onSubscribe(Flow.Subscription s)
+            {
+                signals.add("onSubscribe");
+                s.request(0);
+            }
+
+            public void onNext(Integer e)
+            {
+                signals.add("onNext");
+            }
+
+            public void onError(Throwable t)
+            {
+                signals.add("onError " + t.getClass().getSimpleName());
+                done.countDown();
+            }
+
+            public void onComplete()
+            {
+                signals.add("onComplete");
+            }
+        });
+        Checks.check(done.await(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "no onError");
+        Checks.check(signals.equals(Arrays.asList("onSubscribe", "onError IllegalArgumentException")),
+            "signals " + signals);
+        Checks.check(Integer.valueOf(1).equals(q.poll()), "element lost");
+    }
+
+    static void rejectingExecutor()
+    {
+        ConcurrentLinkedBlockingQueue<Integer> q = new ConcurrentLinkedBlockingQueue<Integer>();
+        final List<String> signals = Collections.synchronizedList(new ArrayList<String>());
+        q.publisher(new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                throw new RejectedExecutionException();
+            }
+        }).subscribe(new Flow.Subscriber<Integer>()
+        {
+            public void onSubscribe(Flow.Subscription s)
+            {
+                signals.add("onSubscribe");
+            }
+
+            public void onNext(Integer e)
+            {
+                signals.add("onNext");
+            }
+
+            public void onError(Throwable t)
+            {
+                signals.add("onError " + t.getClass().getSimpleName());
+            }
+
+            public void onComplete()
+            {
+                signals.add("onComplete");
+            }
+        });
+        Checks.check(signals.equals(Arrays.asList("onSubscribe", "onError RejectedExecutionException")),
+            "signals " + signals);
+    }
+
+    /**
+     * Feeds the subscriber of a small bounded queue from an upstream that
+     * delivers synchronously inside request, so whoever requests more runs
+     * onNext, while this thread takes the elements off; it must never be the
+     * one that requests.
+     */
+    static void subscriberRequestsOffConsumer() throws InterruptedException
+    {
+        final ConcurrentLinkedBlockingQueue<Integer> q = new ConcurrentLinkedBlockingQueue<Integer>(2);
+        final Thread consumer = Thread.currentThread();
+        final AtomicInteger onConsumer = new AtomicInteger();
+        final AtomicReference<Boolean> subscribed = new AtomicReference<Boolean>(false);
+        final Flow.Subscriber<Integer> sub = q.subscriber();
+        sub.onSubscribe(new Flow.Subscription()
+        {
+            private int _next;
+            private long _demand;
+            private boolean _busy;
+
+            public synchronized void request(long n)
+            {
+                _demand += n;
+                if (_busy)
+                    return;
+                _busy = true;
+                while (_demand > 0 && _next < ITEMS)
+                {
+                    _demand--;
+                    if (subscribed.get() && Thread.currentThread() == consumer)
+                        onConsumer.incrementAndGet();
+                    sub.onNext(_next++);
+                }
+                _busy = false;
+            }
+
+            public void cancel()
+            {
+            }
+        });
+        // the first requests come from onSubscribe, on this thread; count the rest
+        subscribed.set(true);
+        AtomicIntegerArray seen = new AtomicIntegerArray(ITEMS);
+        for (int i = 0; i < ITEMS; i++)
+        {
+            Integer e = q.poll(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            Checks.check(e != null, "hangs after " + i + " elements");
+            seen.incrementAndGet(e);
+        }
+        for (int i = 0; i < ITEMS; i++)
+            Checks.check(seen.get(i) == 1, "element " + i + " arrived " + seen.get(i) + " times");
+        Checks.check(onConsumer.get() == 0, onConsumer + " elements requested by the consumer");
+    }
+
+    /**
+     * Moves elements from one queue into a small bounded one through the
+     * publisher of the first and the subscriber of the second, and checks
+     * that each arrives once.
+     */
+    static void publisherToSubscriber() throws InterruptedException
+    {
+        ConcurrentLinkedBlockingQueue<Integer> source = new ConcurrentLinkedBlockingQueue<Integer>();
+        ConcurrentLinkedBlockingQueue<Integer> sink = new ConcurrentLinkedBlockingQueue<Integer>(16);
+        source.publisher().subscribe(sink.subscriber());
+        offering(source, 0, ITEMS);
+        AtomicIntegerArray seen = new AtomicIntegerArray(ITEMS);
+        for (int i = 0; i < ITEMS; i++)
+        {
+            Integer e = sink.poll(Checks.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            Checks.check(e != null, "hangs after " + i + " elements");
+            seen.incrementAndGet(e);
+        }
+        for (int i = 0; i < ITEMS; i++)
+            Checks.check(seen.get(i) == 1, "element " + i + " arrived " + seen.get(i) + " times");
+        Checks.check(sink.poll(10, TimeUnit.MILLISECONDS) == null, "extra element");
+    }
+
+    public static void main(String[] args)
+    {
+        boolean ok = true;
+
+        for (final int n : new int[] {1, 3})
+            ok &= Checks.run("publisher signal order, exactly once, " + n + " subscriber(s)", new Checks.Check()
+            {
+                public void run() throws Exception
+                {
+                    publisherExactlyOnce(n);
+                }
+            });
+        ok &= Checks.run("non-positive request signals onError", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                nonPositiveRequest();
+            }
+        });
+        ok &= Checks.run("rejecting executor signals onSubscribe, then onError", new Checks.Check()
+        {
+            public void run()
+            {
+                rejectingExecutor();
+            }
+        });
+        ok &= Checks.run("subscriber requests off the consumer thread", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                subscriberRequestsOffConsumer();
+            }
+        });
+        ok &= Checks.run("publisher to subscriber, exactly once", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                publisherToSubscriber();
+            }
+        });
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,90 @@
+package h2o.util.concurrent.queuebench;
+
+/**
+ * Histogram of nanosecond latencies with log-linear buckets: exact below
+ * {@value #SUB_BUCKETS} ns, then {@value #SUB_BUCKETS} buckets per power of two,
+ * i.e. within about 1.6% of the recorded value. Not thread safe; record into
+ * one histogram per thread and {@link #add(LatencyHistogram) add} them up.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+final class LatencyHistogram
+{
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long max;
+
+    /**
+     * Records the given latency once.
+     */
+    void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+        counts[index(nanos)]++;
+        count++;
+        if (nanos > max)
+            max = nanos;
+    }
+
+    void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        if (other.max > max)
+            max = other.max;
+    }
+
+    long count()
+    {
+        return count;
+    }
+
+    long max()
+    {
+        return max;
+    }
+
+    /**
+     * Returns the (upper bound of the bucket of the) latency the given
+     * percentage of samples are at or below.
+     */
+    long percentile(double percent)
+    {
+        if (count == 0)
+            return 0;
+        long rank = (long)Math.ceil(count * percent / 100);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    private static int index(long v)
+    {
+        if (v < SUB_BUCKETS)
+            return (int)v;
+        int shift = 63 - SUB_BITS - Long.numberOfLeadingZeros(v);
+        return (shift + 1) * SUB_BUCKETS + (int)(v >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
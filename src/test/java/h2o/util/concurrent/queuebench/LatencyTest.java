@@ -0,0 +1,177 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures handoff latency rather than throughput: a single producer puts
+ * items at a fixed target rate, each stamped with the time it was due to be
+ * sent and the time it actually was, and consumers record the delay from
+ * either stamp to the moment they took it. The delay from the due time counts
+ * any backlog the producer fell into, so that a stall delays every item that
+ * was due meanwhile rather than a single one (coordinated omission); the delay
+ * from the send time shows what the correction adds.
+ * <p>
+ * Runs ConcurrentLinkedBlockingQueue and LinkedBlockingQueue for each consumer
+ * count in an "idle" regime, where items trickle in and consumers park between
+ * them, and a "busy" regime, where they rarely find the queue empty.
+ * <p>
+ * Properties: "consumers" (default "1,2,4"), "idleRate" and "busyRate" in items
+ * per second (default 10000 and 200000), "seconds" per run (default 2).
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class LatencyTest
+{
+    private static final Stamp DONE = new Stamp(0, 0);
+
+    private final int numConsumer;
+    private final int rate;
+    private final int items;
+    private final long intervalNanos;
+
+    public LatencyTest(int numConsumer, int rate, int seconds)
+    {
+        this.numConsumer = numConsumer;
+        this.rate = rate;
+        this.items = rate * seconds;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+    }
+
+    /**
+     * Sends all items through the given queue; returns the histograms of the
+     * delays from the due time (corrected) and from the send time (raw).
+     */
+    public LatencyHistogram[] run(final BlockingQueue<Stamp> q) throws InterruptedException
+    {
+        final LatencyHistogram[][] histograms = new LatencyHistogram[numConsumer][];
+        Thread[] consumers = new Thread[numConsumer];
+
+        for (int i = 0; i < numConsumer; i++)
+        {
+            final LatencyHistogram corrected = new LatencyHistogram();
+            final LatencyHistogram raw = new LatencyHistogram();
+            histograms[i] = new LatencyHistogram[] {corrected, raw};
+            consumers[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (Stamp s; (s = q.take()) != DONE;)
+                        {
+                            long now = System.nanoTime();
+                            corrected.record(now - s.due);
+                            raw.record(now - s.sent);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // done
+                    }
+                }
+            };
+            consumers[i].start();
+        }
+
+        // let all consumers park
+        Thread.sleep(100);
+        final long t0 = System.nanoTime();
+
+        for (int i = 0; i < items; i++)
+        {
+            long due = t0 + i * intervalNanos;
+            long now;
+
+            while ((now = System.nanoTime()) < due)
+                Thread.onSpinWait();
+            q.put(new Stamp(due, now));
+        }
+
+        for (int i = 0; i < numConsumer; i++)
+            q.put(DONE);
+        for (Thread consumer : consumers)
+            consumer.join();
+
+        LatencyHistogram corrected = new LatencyHistogram();
+        LatencyHistogram raw = new LatencyHistogram();
+
+        for (LatencyHistogram[] h : histograms)
+        {
+            corrected.add(h[0]);
+            raw.add(h[1]);
+        }
+
+        return new LatencyHistogram[] {corrected, raw};
+    }
+
+    public void report(String name, LatencyHistogram[] histograms)
+    {
+        System.out.println(String.format("%s, %d consumers, %d items/s", name, numConsumer, rate));
+        print("corrected", histograms[0]);
+        print("raw", histograms[1]);
+    }
+
+    private static void print(String label, LatencyHistogram h)
+    {
+        System.out.println(String.format(
+            "  %-9s p50 %8.1f us, p90 %8.1f us, p99 %8.1f us, p99.9 %8.1f us, p99.99 %8.1f us, max %8.1f us",
+            label, h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+            h.percentile(99.9) / 1e3, h.percentile(99.99) / 1e3, h.max() / 1e3));
+    }
+
+    /**
+     * An item stamped with the time it was due to be sent and the time it was.
+     */
+    static final class Stamp
+    {
+        final long due;
+        final long sent;
+
+        Stamp(long due, long sent)
+        {
+            this.due = due;
+            this.sent = sent;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        final int seconds = Integer.getInteger("seconds", 2);
+        final int[] rates = {Integer.getInteger("idleRate", 10000), Integer.getInteger("busyRate", 200000)};
+        final String[] regimes = {"idle", "busy"};
+
+        for (String n : System.getProperty("consumers", "1,2,4").split(","))
+        {
+            int numConsumer = Integer.parseInt(n.trim());
+
+            for (int r = 0; r < rates.length; r++)
+            {
+                LatencyTest test = new LatencyTest(numConsumer, rates[r], seconds);
+                System.out.println();
+                System.out.println(regimes[r] + " regime:");
+
+                // the first run of each pair only warms up
+                for (int i = 0; i < 2; i++)
+                {
+                    LatencyHistogram[] clbq = test.run(new ConcurrentLinkedBlockingQueue<Stamp>());
+                    System.gc();
+                    LatencyHistogram[] lbq = test.run(new LinkedBlockingQueue<Stamp>());
+                    System.gc();
+
+                    if (i > 0)
+                    {
+                        test.report("ConcurrentLinkedBlockingQueue", clbq);
+                        test.report("LinkedBlockingQueue", lbq);
+                    }
+                }
+            }
+        }
+        System.exit(0);
+    }
+}
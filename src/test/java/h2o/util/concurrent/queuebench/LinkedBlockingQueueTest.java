@@ -2,7 +2,6 @@
 package h2o.util.concurrent.queuebench;
 
 
-import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -19,20 +18,30 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class LinkedBlockingQueueTest extends AbstractBlockingQueueTest
 {
-    private final LinkedBlockingQueue<Integer> q = new LinkedBlockingQueue<Integer>();
+    private final LinkedBlockingQueue<Integer> q;
+
+    public LinkedBlockingQueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity,
+                                   Integer queueCapacity)
+    {
+        super(wcRatio, numConsumer, numProducer, capacity, queueCapacity);
+        this.q = queueCapacity == null
+                        ? new LinkedBlockingQueue<Integer>()
+                        : new LinkedBlockingQueue<Integer>(queueCapacity);
+    }
 
     public LinkedBlockingQueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity)
     {
-        super(wcRatio, numConsumer, numProducer, capacity);
+        this(wcRatio, numConsumer, numProducer, capacity, null);
     }
 
     public LinkedBlockingQueueTest()
     {
         super();
+        this.q = new LinkedBlockingQueue<Integer>();
     }
 
     @Override
-    protected Queue<Integer> getQueue()
+    protected BlockingQueue<Integer> getQueue()
     {
         return q;
     }
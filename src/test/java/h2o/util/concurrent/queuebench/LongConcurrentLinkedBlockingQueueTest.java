@@ -0,0 +1,97 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.LongConcurrentLinkedBlockingQueue;
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Used to test the performance of LongConcurrentLinkedBlockingQueue against the
+ * boxed queues. Producers offer plain long values, so unlike the boxed drivers,
+ * which offer pre-boxed Integers, nothing is allocated per item except chunks.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ *
+ * @see ConcurrentLinkedBlockingQueueTest
+ */
+public class LongConcurrentLinkedBlockingQueueTest extends AbstractQueueTest
+{
+    private final LongConcurrentLinkedBlockingQueue q = new LongConcurrentLinkedBlockingQueue();
+
+    public LongConcurrentLinkedBlockingQueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity)
+    {
+        super(wcRatio, numConsumer, numProducer, capacity);
+    }
+
+    public LongConcurrentLinkedBlockingQueueTest()
+    {
+        super();
+    }
+
+    @Override
+    protected Callable<Void> newProducer(final int start)
+    {
+        return new Callable<Void>()
+        {
+            public Void call()
+            {
+                for (long i = start, end = start + batchSize; i < end; i++)
+                    q.offer(i);
+                return null;
+            }
+        };
+    }
+
+    @Override
+    protected long getSkippedMarkers()
+    {
+        return q.skippedMarkers();
+    }
+
+    @Override
+    protected Callable<Void> newConumerCallable(final int max)
+    {
+        return new Callable<Void>()
+        {
+            public Void call() throws InterruptedException
+            {
+                for (int count = 0; count < max; count++)
+                    q.takeLong();
+                return null;
+            }
+        };
+    }
+
+    @Override
+    protected Callable<Void> newDrainingConsumer(final int max)
+    {
+        return new Callable<Void>()
+        {
+            public Void call() throws InterruptedException
+            {
+                long[] batch = new long[DRAIN_BATCH + 1];
+
+                for (int count = 0; count < max;)
+                    count += q.takeBatch(batch, 0, Math.min(batch.length, max - count));
+                return null;
+            }
+        };
+    }
+
+    @Override
+    protected BlockingQueue<Runnable> newThreadPoolBlockingQueue(Integer capacity)
+    {
+        return capacity == null
+                        ? new ConcurrentLinkedBlockingQueue<Runnable>()
+                        : new ConcurrentLinkedBlockingQueue<Runnable>(capacity);
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException
+    {
+        new LongConcurrentLinkedBlockingQueueTest().call();
+        System.exit(0);
+    }
+}
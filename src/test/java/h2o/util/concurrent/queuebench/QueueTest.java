@@ -1,8 +1,15 @@
 
 package h2o.util.concurrent.queuebench;
 
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+import h2o.util.concurrent.ConcurrentLinkedTransferQueue;
+import h2o.util.concurrent.WaitStrategy;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedTransferQueue;
 
 /**
  * Used to test the performance of ConcurrentLinkedBlockingQueue vs LinkedBlockingQueue.
@@ -16,22 +23,123 @@ import java.util.concurrent.ExecutionException;
  */
 public class QueueTest
 {
+    private final float wcRatio;
+    private final int numConsumer;
+    private final int numProducer;
+    private final Integer capacity;
+    private final Integer queueCapacity;
+    private final WaitStrategy waitStrategy;
+    private final Integer capacitySlack;
+    private final Integer lanes;
+
+    public QueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity, Integer queueCapacity,
+                     WaitStrategy waitStrategy, Integer capacitySlack, Integer lanes)
+    {
+        this.wcRatio = wcRatio;
+        this.numConsumer = numConsumer;
+        this.numProducer = numProducer;
+        this.capacity = capacity;
+        this.queueCapacity = queueCapacity;
+        this.waitStrategy = waitStrategy;
+        this.capacitySlack = capacitySlack;
+        this.lanes = lanes;
+    }
+
+    /**
+     * Returns the names of the drivers that apply to this configuration, in the
+     * order they run; see {@link #newDriver(String)}.
+     */
+    public List<String> drivers(boolean transfer)
+    {
+        final boolean bounded = queueCapacity != null;
+        List<String> drivers = new ArrayList<String>();
+
+        drivers.add("clbq");
+        drivers.add("clbq-reuse");
+        if (waitStrategy != null)
+            drivers.add("clbq-wait");
+        if (bounded)
+            drivers.add("clbq-array");
+        if (!bounded && numConsumer == 1)
+            drivers.add(numProducer == 1 ? "clbq-spsc" : "clbq-mpsc");
+        if (!bounded)
+            drivers.add("clbq-long");
+        if (!bounded)
+            drivers.add("clbq-chunked");
+        if (!bounded && lanes != null)
+            drivers.add("clbq-lanes");
+        if (!bounded && transfer)
+            drivers.addAll(Arrays.asList("cltq-transfer", "ltq-transfer"));
+        if (bounded && capacitySlack != null)
+            drivers.add("clbq-striped");
+        drivers.add("lbq");
+        if (bounded)
+            drivers.add("abq");
+        if (!bounded)
+            drivers.addAll(Arrays.asList("cltq", "ltq"));
+        return drivers;
+    }
+
+    /**
+     * Returns a new driver of the given name, with a queue of its own.
+     */
+    public AbstractQueueTest newDriver(String name)
+    {
+        if ("clbq".equals(name))
+            return new ConcurrentLinkedBlockingQueueTest(wcRatio, numConsumer, numProducer, capacity, queueCapacity);
+        if ("clbq-reuse".equals(name))
+            return newClbqDriver("reuseMarkers", ConcurrentLinkedBlockingQueue.<Integer>builder().reuseMarkers(true));
+        if ("clbq-wait".equals(name))
+            return newClbqDriver(waitStrategy.toString(),
+                ConcurrentLinkedBlockingQueue.<Integer>builder().waitStrategy(waitStrategy));
+        if ("clbq-array".equals(name))
+            return newClbqDriver("arrayBacked", ConcurrentLinkedBlockingQueue.<Integer>builder().arrayBacked(true));
+        if ("clbq-spsc".equals(name) || "clbq-mpsc".equals(name))
+            return newClbqDriver(name.substring(5), ConcurrentLinkedBlockingQueue.<Integer>builder()
+                .singleProducer("clbq-spsc".equals(name)).singleConsumer(true));
+        if ("clbq-long".equals(name))
+            return new LongConcurrentLinkedBlockingQueueTest(wcRatio, numConsumer, numProducer, capacity);
+        if ("clbq-chunked".equals(name))
+            return newClbqDriver("chunked", ConcurrentLinkedBlockingQueue.<Integer>builder().chunked(true));
+        if ("clbq-lanes".equals(name))
+            return newClbqDriver("lanes(" + lanes + ")", ConcurrentLinkedBlockingQueue.<Integer>builder().lanes(lanes));
+        if ("clbq-striped".equals(name))
+            return newClbqDriver("stripedCapacity(" + capacitySlack + ")",
+                ConcurrentLinkedBlockingQueue.<Integer>builder().stripedCapacity(capacitySlack));
+        if ("lbq".equals(name))
+            return new LinkedBlockingQueueTest(wcRatio, numConsumer, numProducer, capacity, queueCapacity);
+        if ("abq".equals(name))
+            return new ArrayBlockingQueueTest(wcRatio, numConsumer, numProducer, capacity, queueCapacity);
+        if ("cltq".equals(name) || "cltq-transfer".equals(name))
+            return new TransferQueueTest(wcRatio, numConsumer, numProducer, capacity,
+                new ConcurrentLinkedTransferQueue<Integer>(), "cltq-transfer".equals(name));
+        if ("ltq".equals(name) || "ltq-transfer".equals(name))
+            return new TransferQueueTest(wcRatio, numConsumer, numProducer, capacity,
+                new LinkedTransferQueue<Integer>(), "ltq-transfer".equals(name));
+        throw new IllegalArgumentException("unknown driver: " + name);
+    }
+
+    private AbstractQueueTest newClbqDriver(String variant, ConcurrentLinkedBlockingQueue.Builder<Integer> builder)
+    {
+        return new ConcurrentLinkedBlockingQueueTest(wcRatio, numConsumer, numProducer, capacity, queueCapacity,
+            variant, builder);
+    }
 
     public static void main(String[] args) throws InterruptedException, ExecutionException
     {
-        final float wcRatio = floatValue("wcRatio", "0.0");
-        final int numConsumer = intValue("numConsumer", "1");
-        final int numProducer = intValue("numProducer", "10");
-        final Integer capacity = integerValue("capacity");
+        final QueueTest test = new QueueTest(floatValue("wcRatio", "0.0"), intValue("numConsumer", "1"),
+            intValue("numProducer", "10"), integerValue("capacity"), integerValue("queueCapacity"),
+            waitStrategyValue("waitStrategy"), integerValue("capacitySlack"), integerValue("lanes"));
+        final List<String> drivers = test.drivers(Boolean.getBoolean("transfer"));
 
         for (int i = 0; i < 10; i++)
         {
-            new ConcurrentLinkedBlockingQueueTest(wcRatio, numConsumer, numProducer, capacity).call();
-            // try to minimize residual memory effect
-            System.gc();
-            new LinkedBlockingQueueTest(wcRatio, numConsumer, numProducer, capacity).call();
-            // try to minimize residual memory effect
-            System.gc();
+            for (String driver : drivers)
+            {
+                test.newDriver(driver).call();
+                // try to minimize residual memory effect
+                System.gc();
+            }
         }
         System.exit(0);
     }
@@ -48,6 +156,44 @@ public class QueueTest
         return val == null ? null : new Integer(val);
     }
 
+    /**
+     * Parses "park", "spin", "yield:spins" or "spinpark:spins:yields".
+     */
+    private static WaitStrategy waitStrategyValue(String key)
+    {
+        String val = System.getProperty(key);
+
+        if (val == null)
+        {
+            return null;
+        }
+
+        String[] parts = val.split(":");
+
+        if ("park".equals(parts[0]))
+        {
+            return WaitStrategy.PARK;
+        }
+
+        if ("spin".equals(parts[0]))
+        {
+            return WaitStrategy.busySpin();
+        }
+
+        if ("yield".equals(parts[0]))
+        {
+            return WaitStrategy.spinThenYield(parts.length > 1 ? Integer.parseInt(parts[1]) : 100);
+        }
+
+        if ("spinpark".equals(parts[0]))
+        {
+            return WaitStrategy.spinThenPark(parts.length > 1 ? Integer.parseInt(parts[1]) : 100,
+                parts.length > 2 ? Integer.parseInt(parts[2]) : 10);
+        }
+
+        throw new IllegalArgumentException(key + ": " + val);
+    }
+
     private static float floatValue(String key, String def)
     {
         String val = System.getProperty(key, def);
@@ -0,0 +1,271 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+import h2o.util.concurrent.ConcurrentLinkedTransferQueue;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedTransferQueue;
+
+/**
+ * Runs the throughput drivers over a matrix of producer and consumer counts,
+ * queue capacities and queue implementations, and writes one row per cell to a
+ * CSV and a JSON file for graphing and for comparing hosts or revisions. Each
+ * cell runs "warmup" untimed and "repeat" timed rounds (see
+ * {@link AbstractQueueTest}) and records the round times, throughput at
+ * the median, allocation, blocked puts, GC count and time and process CPU time
+ * of the timed rounds. With a "latencyRate", each cell also runs a
+ * {@link LatencyTest} at that rate with one paced producer and records the
+ * corrected and the raw latency percentiles.
+ * <p>
+ * Properties: "producers" and "consumers" (default "1,2,4"), "capacities"
+ * (default "unbounded,1024"), "impls" (default "clbq,lbq,abq"; also
+ * "clbq-reuse", "clbq-array", "clbq-chunked", "cltq" and "ltq"), "wcRatio"
+ * (default 0), "latencyRate" (items per second, default 0 for none),
+ * "latencySeconds" (default 1) and "out" (default "sweep", writing sweep.csv and
+ * sweep.json). Cells an implementation does not support, such as an unbounded
+ * ArrayBlockingQueue, are skipped.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class SweepTest
+{
+    private static final String[] COLUMNS = {"impl", "producers", "consumers", "capacity", "cpus", "items",
+        "rounds", "median_ms", "mean_ms", "min_ms", "max_ms", "throughput_mitems_s", "alloc_bytes_per_item",
+        "blocked_ratio", "gc_count", "gc_ms", "cpu_ms", "latency_rate", "latency_p50_us", "latency_p99_us",
+        "latency_p999_us", "latency_max_us", "raw_latency_p50_us", "raw_latency_p99_us", "raw_latency_p999_us",
+        "raw_latency_max_us"};
+
+    private final float wcRatio;
+    private final int latencyRate;
+    private final int latencySeconds;
+    private final List<Object[]> rows = new ArrayList<Object[]>();
+
+    public SweepTest(float wcRatio, int latencyRate, int latencySeconds)
+    {
+        this.wcRatio = wcRatio;
+        this.latencyRate = latencyRate;
+        this.latencySeconds = latencySeconds;
+    }
+
+    /**
+     * Returns a driver of the given implementation, or null if it does not
+     * support the given capacity (null for unbounded).
+     */
+    private AbstractQueueTest newDriver(String impl, int numProducer, int numConsumer, Integer capacity)
+    {
+        if ("clbq".equals(impl))
+            return new ConcurrentLinkedBlockingQueueTest(wcRatio, numConsumer, numProducer, null, capacity);
+        if ("clbq-reuse".equals(impl))
+            return new ConcurrentLinkedBlockingQueueTest(wcRatio, numConsumer, numProducer, null, capacity,
+                "reuseMarkers", ConcurrentLinkedBlockingQueue.<Integer>builder().reuseMarkers(true));
+        if ("clbq-array".equals(impl))
+            return capacity == null ? null : new ConcurrentLinkedBlockingQueueTest(wcRatio, numConsumer,
+                numProducer, null, capacity, "arrayBacked",
+                ConcurrentLinkedBlockingQueue.<Integer>builder().arrayBacked(true));
+        if ("clbq-chunked".equals(impl))
+            return capacity != null ? null : new ConcurrentLinkedBlockingQueueTest(wcRatio, numConsumer,
+                numProducer, null, null, "chunked", ConcurrentLinkedBlockingQueue.<Integer>builder().chunked(true));
+        if ("lbq".equals(impl))
+            return new LinkedBlockingQueueTest(wcRatio, numConsumer, numProducer, null, capacity);
+        if ("abq".equals(impl))
+            return capacity == null ? null : new ArrayBlockingQueueTest(wcRatio, numConsumer, numProducer, null,
+                capacity);
+        if ("cltq".equals(impl))
+            return capacity != null ? null : new TransferQueueTest(wcRatio, numConsumer, numProducer, null,
+                new ConcurrentLinkedTransferQueue<Integer>(), false);
+        if ("ltq".equals(impl))
+            return capacity != null ? null : new TransferQueueTest(wcRatio, numConsumer, numProducer, null,
+                new LinkedTransferQueue<Integer>(), false);
+        throw new IllegalArgumentException("unknown impl: " + impl);
+    }
+
+    /**
+     * Returns a queue of the given implementation for the latency test.
+     */
+    private static <T> BlockingQueue<T> newQueue(String impl, Integer capacity)
+    {
+        if ("clbq".equals(impl))
+            return capacity == null
+                            ? new ConcurrentLinkedBlockingQueue<T>()
+                            : new ConcurrentLinkedBlockingQueue<T>(capacity);
+        if ("clbq-reuse".equals(impl) || "clbq-array".equals(impl) || "clbq-chunked".equals(impl))
+        {
+            ConcurrentLinkedBlockingQueue.Builder<T> builder = ConcurrentLinkedBlockingQueue.<T>builder()
+                .reuseMarkers("clbq-reuse".equals(impl)).arrayBacked("clbq-array".equals(impl))
+                .chunked("clbq-chunked".equals(impl));
+            return (capacity == null ? builder : builder.capacity(capacity)).build();
+        }
+        if ("lbq".equals(impl))
+            return capacity == null ? new LinkedBlockingQueue<T>() : new LinkedBlockingQueue<T>(capacity);
+        if ("abq".equals(impl))
+            return new ArrayBlockingQueue<T>(capacity);
+        if ("cltq".equals(impl))
+            return new ConcurrentLinkedTransferQueue<T>();
+        if ("ltq".equals(impl))
+            return new LinkedTransferQueue<T>();
+        throw new IllegalArgumentException("unknown impl: " + impl);
+    }
+
+    /**
+     * Measures one cell of the matrix and adds its row, unless the
+     * implementation does not support it.
+     */
+    public void run(String impl, int numProducer, int numConsumer, Integer capacity)
+        throws InterruptedException, ExecutionException
+    {
+        AbstractQueueTest driver = newDriver(impl, numProducer, numConsumer, capacity);
+
+        if (driver == null)
+            return;
+
+        long[] durations = driver.measure();
+        double mean = 0;
+        for (long duration : durations)
+            mean += duration;
+        mean /= durations.length;
+        long median = durations[durations.length / 2];
+        System.gc();
+
+        Object[] row = {impl, numProducer, numConsumer, capacity == null ? "unbounded" : capacity,
+            Runtime.getRuntime().availableProcessors(), driver.totalSize, durations.length, median / 1e6,
+            mean / 1e6, durations[0] / 1e6, durations[durations.length - 1] / 1e6, driver.totalSize * 1e3 / median,
+            driver.getAllocatedPerItem(), driver.getBlockedRatio(), driver.getGcCount(), driver.getGcMillis(),
+            driver.getCpuNanos() / 1e6, null, null, null, null, null, null, null, null, null};
+
+        if (latencyRate > 0)
+        {
+            LatencyTest latency = new LatencyTest(numConsumer, latencyRate, latencySeconds);
+            // the first run only warms up
+            latency.run(newQueue(impl, capacity));
+            LatencyHistogram[] histograms = latency.run(newQueue(impl, capacity));
+            System.gc();
+            row[17] = latencyRate;
+            for (int i = 0; i < histograms.length; i++)
+            {
+                LatencyHistogram h = histograms[i];
+                row[18 + 4 * i] = h.percentile(50) / 1e3;
+                row[19 + 4 * i] = h.percentile(99) / 1e3;
+                row[20 + 4 * i] = h.percentile(99.9) / 1e3;
+                row[21 + 4 * i] = h.max() / 1e3;
+            }
+        }
+
+        rows.add(row);
+        System.out.println(String.format("%s, %d producers, %d consumers, capacity %s: median %.3f ms, "
+                                         + "%.3f Mitems/s", impl, numProducer, numConsumer, row[3], row[7], row[11]));
+    }
+
+    public void writeCsv(String file) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+
+        try
+        {
+            out.println(String.join(",", COLUMNS));
+            for (Object[] row : rows)
+            {
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < row.length; i++)
+                {
+                    if (i > 0)
+                        line.append(',');
+                    if (row[i] != null)
+                        line.append(format(row[i]));
+                }
+                out.println(line);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    public void writeJson(String file) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+
+        try
+        {
+            out.println("{");
+            out.println(String.format("  \"host\": {\"cpus\": %d, \"os\": \"%s\", \"arch\": \"%s\", \"java\": \"%s\"},",
+                Runtime.getRuntime().availableProcessors(), System.getProperty("os.name"),
+                System.getProperty("os.arch"), System.getProperty("java.version")));
+            out.println("  \"results\": [");
+            for (int r = 0; r < rows.size(); r++)
+            {
+                Object[] row = rows.get(r);
+                StringBuilder line = new StringBuilder("    {");
+                for (int i = 0; i < row.length; i++)
+                {
+                    if (i > 0)
+                        line.append(", ");
+                    line.append('"').append(COLUMNS[i]).append("\": ");
+                    if (row[i] == null)
+                        line.append("null");
+                    else if (row[i] instanceof String)
+                        line.append('"').append(row[i]).append('"');
+                    else
+                        line.append(format(row[i]));
+                }
+                out.println(line.append(r < rows.size() - 1 ? "}," : "}"));
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static String format(Object value)
+    {
+        return value instanceof Double ? String.format(Locale.ROOT, "%.4f", value) : value.toString();
+    }
+
+    private static int[] intValues(String key, String def)
+    {
+        String[] parts = System.getProperty(key, def).split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException, IOException
+    {
+        final int[] producers = intValues("producers", "1,2,4");
+        final int[] consumers = intValues("consumers", "1,2,4");
+        final String[] capacities = System.getProperty("capacities", "unbounded,1024").split(",");
+        final String[] impls = System.getProperty("impls", "clbq,lbq,abq").split(",");
+        final String out = System.getProperty("out", "sweep");
+        SweepTest sweep = new SweepTest(Float.parseFloat(System.getProperty("wcRatio", "0")),
+            Integer.getInteger("latencyRate", 0), Integer.getInteger("latencySeconds", 1));
+
+        for (String capacity : capacities)
+        {
+            Integer queueCapacity = "unbounded".equals(capacity.trim()) ? null : Integer.valueOf(capacity.trim());
+
+            for (int numProducer : producers)
+                for (int numConsumer : consumers)
+                    for (String impl : impls)
+                        sweep.run(impl.trim(), numProducer, numConsumer, queueCapacity);
+        }
+
+        sweep.writeCsv(out + ".csv");
+        sweep.writeJson(out + ".json");
+        System.out.println("Wrote " + out + ".csv and " + out + ".json");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,219 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedTransferQueue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the transfer paths of ConcurrentLinkedTransferQueue: tryTransfer
+ * fails without a waiting consumer and leaves nothing behind, also once its
+ * timeout expired or its producer was interrupted, and succeeds with a parked
+ * consumer; transfer delivers every element exactly once with several
+ * producers and consumers.
+ * <p>
+ * Properties: "items" (default 100000) and "timeoutMillis" (default 30000).
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class TransferCheck
+{
+    private static final int ITEMS = Integer.getInteger("items", 100000);
+
+    static void tryTransferWithoutConsumer()
+    {
+        ConcurrentLinkedTransferQueue<Integer> q = new ConcurrentLinkedTransferQueue<Integer>();
+        Checks.check(!q.tryTransfer(1), "tryTransfer succeeded without a consumer");
+        Checks.check(q.isEmpty() && q.poll() == null, "tryTransfer left its element behind");
+    }
+
+    static void tryTransferTimesOut() throws InterruptedException
+    {
+        ConcurrentLinkedTransferQueue<Integer> q = new ConcurrentLinkedTransferQueue<Integer>();
+        final long t0 = System.nanoTime();
+        Checks.check(!q.tryTransfer(1, 20, TimeUnit.MILLISECONDS), "timed tryTransfer succeeded without a consumer");
+        Checks.check(System.nanoTime() - t0 >= TimeUnit.MILLISECONDS.toNanos(20), "timed tryTransfer returned early");
+        Checks.check(q.isEmpty() && q.size() == 0 && q.poll() == null, "timed out tryTransfer left its element behind");
+    }
+
+    static void transferInterrupted() throws InterruptedException
+    {
+        final ConcurrentLinkedTransferQueue<Integer> q = new ConcurrentLinkedTransferQueue<Integer>();
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        Thread producer = new Thread("producer")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    q.transfer(1);
+                }
+                catch (InterruptedException e)
+                {
+                    thrown.set(e);
+                }
+            }
+        };
+        producer.start();
+        // give it time to put the element aside
+        Thread.sleep(20);
+        producer.interrupt();
+        producer.join(Checks.TIMEOUT_MILLIS);
+        Checks.check(!producer.isAlive(), "interrupted transfer hangs");
+        Checks.check(thrown.get() instanceof InterruptedException, "interrupted transfer returned normally");
+        Checks.check(q.isEmpty() && q.poll() == null, "interrupted transfer left its element behind");
+    }
+
+    static void tryTransferToParkedConsumer() throws InterruptedException
+    {
+        final ConcurrentLinkedTransferQueue<Integer> q = new ConcurrentLinkedTransferQueue<Integer>();
+        final AtomicReference<Integer> taken = new AtomicReference<Integer>();
+        Thread consumer = new Thread("consumer")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    taken.set(q.take());
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        consumer.setDaemon(true);
+        consumer.start();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Checks.TIMEOUT_MILLIS);
+        while (!q.hasWaitingConsumer())
+        {
+            Checks.check(System.nanoTime() < deadline, "consumer never waited");
+            Thread.sleep(1);
+        }
+        Checks.check(q.tryTransfer(42), "tryTransfer failed with a waiting consumer");
+        consumer.join(Checks.TIMEOUT_MILLIS);
+        Checks.check(Integer.valueOf(42).equals(taken.get()), "consumer took " + taken.get());
+        Checks.check(q.isEmpty(), "queue not empty");
+    }
+
+    /**
+     * Transfers, offers and timed tryTransfers numbered elements from several
+     * producers to several consumers and checks each arrived exactly once.
+     */
+    static void transferExactlyOnce(final int producers, final int consumers) throws InterruptedException
+    {
+        final ConcurrentLinkedTransferQueue<Integer> q = new ConcurrentLinkedTransferQueue<Integer>();
+        final AtomicIntegerArray seen = new AtomicIntegerArray(ITEMS);
+        Thread[] threads = new Thread[producers + consumers];
+
+        for (int i = 0; i < producers; i++)
+        {
+            final int start = (int)((long)ITEMS * i / producers);
+            final int end = (int)((long)ITEMS * (i + 1) / producers);
+            final int mode = i % 3;
+            threads[i] = new Thread("producer-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int e = start; e < end; e++)
+                        {
+                            if (mode == 0)
+                                q.transfer(e);
+                            else if (mode == 1)
+                                q.offer(e);
+                            else if (!q.tryTransfer(e, 1, TimeUnit.MILLISECONDS))
+                                q.transfer(e);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < consumers; i++)
+        {
+            final int quota = (int)((long)ITEMS * (i + 1) / consumers) - (int)((long)ITEMS * i / consumers);
+            final boolean timed = i % 2 == 1;
+            threads[producers + i] = new Thread("consumer-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int count = 0; count < quota;)
+                        {
+                            Integer e = timed ? q.poll(1, TimeUnit.MILLISECONDS) : q.take();
+                            if (e != null)
+                            {
+                                seen.incrementAndGet(e);
+                                count++;
+                            }
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+        Checks.runAll("transfer", threads);
+
+        for (int i = 0; i < ITEMS; i++)
+            Checks.check(seen.get(i) == 1, "element " + i + " arrived " + seen.get(i) + " times");
+        Checks.check(q.isEmpty() && q.poll() == null, "queue not empty: " + q);
+    }
+
+    public static void main(String[] args)
+    {
+        boolean ok = true;
+
+        ok &= Checks.run("tryTransfer without consumer", new Checks.Check()
+        {
+            public void run()
+            {
+                tryTransferWithoutConsumer();
+            }
+        });
+        ok &= Checks.run("timed tryTransfer times out", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                tryTransferTimesOut();
+            }
+        });
+        ok &= Checks.run("interrupted transfer", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                transferInterrupted();
+            }
+        });
+        ok &= Checks.run("tryTransfer to parked consumer", new Checks.Check()
+        {
+            public void run() throws Exception
+            {
+                tryTransferToParkedConsumer();
+            }
+        });
+        for (final int n : new int[] {1, 3})
+            ok &= Checks.run("transfer exactly once, " + n + " producer(s), " + n + " consumer(s)", new Checks.Check()
+            {
+                public void run() throws Exception
+                {
+                    transferExactlyOnce(n, n);
+                }
+            });
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,107 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+import h2o.util.concurrent.ConcurrentLinkedTransferQueue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TransferQueue;
+
+/**
+ * Used to test the performance of ConcurrentLinkedTransferQueue vs
+ * LinkedTransferQueue, with producers either offering or transferring.
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ *
+ * @see ConcurrentLinkedBlockingQueueTest
+ */
+public class TransferQueueTest extends AbstractBlockingQueueTest
+{
+    private final TransferQueue<Integer> q;
+    private final boolean transfer;
+
+    public TransferQueueTest(float wcRatio, int numConsumer, int numProducer, Integer capacity,
+                             TransferQueue<Integer> q, boolean transfer)
+    {
+        super(wcRatio, numConsumer, numProducer, capacity);
+        this.q = q;
+        this.transfer = transfer;
+    }
+
+    public TransferQueueTest(TransferQueue<Integer> q, boolean transfer)
+    {
+        super();
+        this.q = q;
+        this.transfer = transfer;
+    }
+
+    @Override
+    protected BlockingQueue<Integer> getQueue()
+    {
+        return q;
+    }
+
+    @Override
+    protected String getVariant()
+    {
+        return " (" + q.getClass().getSimpleName() + (transfer ? ", transfer)" : ")");
+    }
+
+    @Override
+    protected Callable<Void> newProducer(final int start)
+    {
+        if (!transfer)
+        {
+            return super.newProducer(start);
+        }
+
+        return new Callable<Void>()
+        {
+            public Void call() throws InterruptedException
+            {
+                for (int i = start, end = start + batchSize; i < end; i++)
+                    q.transfer(data[i]);
+                return null;
+            }
+        };
+    }
+
+    @Override
+    protected long getSkippedMarkers()
+    {
+        return q instanceof ConcurrentLinkedBlockingQueue ? ((ConcurrentLinkedBlockingQueue<?>)q).skippedMarkers() : -1;
+    }
+
+    @Override
+    protected Callable<Void> newConumerCallable(final int max)
+    {
+        return new Callable<Void>()
+        {
+            public Void call() throws InterruptedException
+            {
+                for (int count = 0; count < max; count++)
+                    q.take();
+                return null;
+            }
+        };
+    }
+
+    @Override
+    protected BlockingQueue<Runnable> newThreadPoolBlockingQueue(Integer capacity)
+    {
+        return capacity == null
+                        ? new ConcurrentLinkedBlockingQueue<Runnable>()
+                        : new ConcurrentLinkedBlockingQueue<Runnable>(capacity);
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException
+    {
+        boolean transfer = Boolean.getBoolean("transfer");
+        new TransferQueueTest(new ConcurrentLinkedTransferQueue<Integer>(), transfer).call();
+        new TransferQueueTest(new LinkedTransferQueue<Integer>(), transfer).call();
+        System.exit(0);
+    }
+}
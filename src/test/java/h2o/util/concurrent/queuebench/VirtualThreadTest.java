@@ -0,0 +1,188 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+import h2o.util.concurrent.QueueStats;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Used to test the performance of ConcurrentLinkedBlockingQueue with thousands
+ * of consumers on virtual threads and a few platform producer threads, where
+ * most consumers are parked most of the time and every unpark is a handoff to
+ * the virtual thread scheduler rather than to the OS. Runs the default queue,
+ * one with a wakeup limit of the number of processors (the default number of
+ * carrier threads) and a LinkedBlockingQueue, and prints the park statistics of
+ * the ConcurrentLinkedBlockingQueues.
+ * <p>
+ * Virtual threads are created by reflection so that the benchmarks still build
+ * for older JDKs; without them the consumers fall back to platform threads, and
+ * the numbers say nothing about virtual threads.
+ * <p>
+ * Properties: "consumers" (default 1000), "producers" (default 2), "items" per
+ * run (default 1000000), "wakeupLimit" (default the number of processors),
+ * "warmup" and "repeat" (default 3 and 10).
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class VirtualThreadTest
+{
+    private static final Integer DONE = Integer.valueOf(-1);
+    private static final Method START_VIRTUAL_THREAD = startVirtualThread();
+
+    private final int consumers;
+    private final int producers;
+    private final int items;
+
+    public VirtualThreadTest(int consumers, int producers, int items)
+    {
+        this.consumers = consumers;
+        this.producers = producers;
+        this.items = items / producers * producers;
+    }
+
+    private static Method startVirtualThread()
+    {
+        try
+        {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+
+    private static void startConsumer(Runnable r) throws Exception
+    {
+        if (START_VIRTUAL_THREAD != null)
+        {
+            START_VIRTUAL_THREAD.invoke(null, r);
+            return;
+        }
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Sends all items from the producers to the consumers; returns the time in
+     * nanoseconds from the start of the producers until the last consumer took
+     * its end marker.
+     */
+    public long run(final BlockingQueue<Integer> q) throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(consumers);
+        final CountDownLatch finished = new CountDownLatch(consumers);
+        final int perProducer = items / producers;
+
+        for (int i = 0; i < consumers; i++)
+        {
+            startConsumer(new Runnable()
+            {
+                public void run()
+                {
+                    started.countDown();
+                    try
+                    {
+                        while (q.take() != DONE)
+                            ;
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // done
+                    }
+                    finished.countDown();
+                }
+            });
+        }
+
+        // let all consumers park
+        started.await();
+        Thread.sleep(100);
+
+        Thread[] producerThreads = new Thread[producers];
+        for (int i = 0; i < producers; i++)
+        {
+            producerThreads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < perProducer; j++)
+                            q.put(j);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // done
+                    }
+                }
+            };
+        }
+
+        final long t0 = System.nanoTime();
+        for (Thread t : producerThreads)
+            t.start();
+        for (Thread t : producerThreads)
+            t.join();
+        for (int i = 0; i < consumers; i++)
+            q.put(DONE);
+        finished.await();
+        return System.nanoTime() - t0;
+    }
+
+    public void test(String name, BlockingQueue<Integer> q, QueueStats stats) throws Exception
+    {
+        final int warmup = Integer.getInteger("warmup", 3);
+        final long[] durations = new long[Integer.getInteger("repeat", 10)];
+
+        for (int i = 0; i < warmup; i++)
+            run(q);
+        QueueStats.Snapshot before = stats == null ? null : stats.snapshot();
+        for (int i = 0; i < durations.length; i++)
+            durations[i] = run(q);
+
+        Arrays.sort(durations);
+        long median = durations[durations.length / 2];
+        System.out.println();
+        System.out.println(name);
+        System.out.println("Consumers: " + consumers + (START_VIRTUAL_THREAD != null ? " (virtual)" : " (platform)")
+                           + ", producers: " + producers + ", items per run: " + items);
+        System.out.println(String.format("median: %.3f ms%nmin: %.3f ms%nmax: %.3f ms", median / 1e6,
+            durations[0] / 1e6, durations[durations.length - 1] / 1e6));
+        System.out.println(String.format("Throughput: %.3f Mitems/s (median)", items * 1e3 / median));
+        if (stats != null)
+            System.out.println("Stats per " + durations.length + " runs: " + stats.snapshot().minus(before));
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final int wakeupLimit = Integer.getInteger("wakeupLimit", Runtime.getRuntime().availableProcessors());
+        VirtualThreadTest test = new VirtualThreadTest(Integer.getInteger("consumers", 1000),
+            Integer.getInteger("producers", 2), Integer.getInteger("items", 1000000));
+
+        if (START_VIRTUAL_THREAD == null)
+            System.out.println("No virtual threads on Java " + System.getProperty("java.version")
+                               + "; consumers run on platform threads");
+
+        for (int i = 0; i < 3; i++)
+        {
+            ConcurrentLinkedBlockingQueue<Integer> clbq =
+                ConcurrentLinkedBlockingQueue.<Integer>builder().stats(true).build();
+            test.test("ConcurrentLinkedBlockingQueue", clbq, clbq.stats());
+            System.gc();
+            clbq = ConcurrentLinkedBlockingQueue.<Integer>builder().stats(true).wakeupLimit(wakeupLimit).build();
+            test.test("ConcurrentLinkedBlockingQueue (wakeupLimit " + wakeupLimit + ")", clbq, clbq.stats());
+            System.gc();
+            test.test("LinkedBlockingQueue", new LinkedBlockingQueue<Integer>(), null);
+            System.gc();
+        }
+        System.exit(0);
+    }
+}
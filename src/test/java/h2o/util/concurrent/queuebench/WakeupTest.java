@@ -0,0 +1,161 @@
+package h2o.util.concurrent.queuebench;
+
+import h2o.util.concurrent.ConcurrentLinkedBlockingQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Measures the wakeup latency of parked consumers under the FIFO and LIFO
+ * wakeup policies: a single producer offers timestamps at a fixed interval to
+ * more consumers than are needed, so that every item wakes up one parked
+ * consumer. Reports latency percentiles from offer to take, context switches
+ * per item (from /proc, Linux only) and how many consumers served items.
+ * <p>
+ * Properties: "numConsumer" (default 8), "items" (default 20000) and
+ * "intervalMicros" (default 50).
+ * <p>
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+public class WakeupTest
+{
+    private final int numConsumer;
+    private final int items;
+    private final long intervalNanos;
+
+    public WakeupTest(int numConsumer, int items, long intervalMicros)
+    {
+        this.numConsumer = numConsumer;
+        this.items = items;
+        this.intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+    }
+
+    public void run(boolean lifo) throws InterruptedException
+    {
+        final ConcurrentLinkedBlockingQueue<Long> q =
+            ConcurrentLinkedBlockingQueue.<Long>builder().lifoWakeup(lifo).build();
+        final long[] latencies = new long[items];
+        final AtomicIntegerArray served = new AtomicIntegerArray(numConsumer);
+        final CountDownLatch done = new CountDownLatch(items);
+        final AtomicInteger taken = new AtomicInteger();
+        Thread[] consumers = new Thread[numConsumer];
+
+        for (int i = 0; i < numConsumer; i++)
+        {
+            final int id = i;
+            consumers[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (;;)
+                        {
+                            long t0 = q.take();
+                            latencies[taken.getAndIncrement()] = System.nanoTime() - t0;
+                            served.incrementAndGet(id);
+                            done.countDown();
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // done
+                    }
+                }
+            };
+            consumers[i].start();
+        }
+
+        // let all consumers park
+        Thread.sleep(100);
+        long switches = contextSwitches();
+
+        for (int i = 0; i < items; i++)
+        {
+            long next = System.nanoTime() + intervalNanos;
+            q.offer(System.nanoTime());
+
+            while (System.nanoTime() < next)
+                Thread.onSpinWait();
+        }
+
+        done.await();
+        switches = contextSwitches() - switches;
+
+        for (Thread consumer : consumers)
+            consumer.interrupt();
+        for (Thread consumer : consumers)
+            consumer.join();
+
+        int active = 0;
+
+        for (int i = 0; i < numConsumer; i++)
+            if (served.get(i) > items / 100) active++;
+
+        Arrays.sort(latencies);
+        System.out.println();
+        System.out.println(getClass().getName() + (lifo ? " (lifoWakeup)" : " (fifo)"));
+        System.out.println("Consumers: " + numConsumer + ", items: " + items + ", interval: "
+                           + TimeUnit.NANOSECONDS.toMicros(intervalNanos) + " us");
+        System.out.println(String.format("Wakeup latency: p50 %.1f us, p99 %.1f us, max %.1f us",
+            latencies[items / 2] / 1e3, latencies[(int)(items * 0.99)] / 1e3, latencies[items - 1] / 1e3));
+        if (switches >= 0)
+            System.out.println(String.format("Context switches: %.2f/item", (double)switches / items));
+        System.out.println("Consumers serving more than 1% of items: " + active);
+        System.out.println();
+    }
+
+    /**
+     * Returns the sum of voluntary and involuntary context switches of all
+     * threads of this process, or -1 if not available.
+     */
+    private static long contextSwitches()
+    {
+        File[] tasks = new File("/proc/self/task").listFiles();
+
+        if (tasks == null)
+            return -1;
+
+        long sum = 0;
+
+        for (File task : tasks)
+        {
+            try
+            {
+                for (String line : Files.readAllLines(new File(task, "status").toPath(), StandardCharsets.UTF_8))
+                {
+                    if (line.contains("ctxt_switches:"))
+                        sum += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                }
+            }
+            catch (IOException e)
+            {
+                // thread has exited
+            }
+        }
+
+        return sum;
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        WakeupTest test = new WakeupTest(Integer.getInteger("numConsumer", 8), Integer.getInteger("items", 20000),
+            Integer.getInteger("intervalMicros", 50));
+
+        for (int i = 0; i < 3; i++)
+        {
+            test.run(false);
+            test.run(true);
+        }
+        System.exit(0);
+    }
+}